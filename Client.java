@@ -1,12 +1,49 @@
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 
 /**
@@ -18,26 +55,134 @@ public class Client extends JFrame {
     private String serverHost;
     private static final int SERVER_PORT = 5000;
     
-    // Network components
-    private Socket socket;
-    private PrintWriter out;
+    // Wire protocol: "binary" (falls back to text on older servers) or "text"
+    private static final String PROTOCOL = System.getProperty("chat.protocol", "binary");
+    
+    // Binary protocol: type (1 byte) | length (4 bytes) | payload
+    private static final String BINARY_PROTOCOL = "binary/2";
+    private static final int TYPE_TEXT = 1;
+    private static final int TYPE_IMAGE = 2;
+    private static final int TYPE_QUIT = 3;
+    private static final int TYPE_FILE_BEGIN = 4;
+    private static final int TYPE_FILE_CHUNK = 5;
+    private static final int TYPE_FILE_OFFSET = 6;
+    private static final int TYPE_MEDIA_REF = 7;
+    private static final int TYPE_MEDIA_FETCH = 8;
+    private static final int TYPE_MEDIA_DATA = 9;
+    private static final int TYPE_COMPRESS = 10;
+    private static final int TYPE_SESSION = 11;
+    private static final int TYPE_CHECKPOINT = 12;
+    private static final int TYPE_TYPING = 13;
+    private static final int TYPE_PRESENCE = 14;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    
+    // Compression asked for after the handshake ("none" to turn it off): text frames with
+    // this type bit carry a raw deflate payload, compressed with a preset dictionary
+    private static final String COMPRESSION = System.getProperty("chat.compression", "deflate");
+    private static final int COMPRESSED = 0x80;
+    private static final int MIN_COMPRESS_LENGTH = 32;
+    
+    // Same bytes as in Server (most common strings last: they get the shortest distances)
+    private static final byte[] DICTIONARY = (
+        "https://www. .com/ .org/ lol haha 😂 ❤️ 👍 🙂 😅 🎉 okay ok sure thanks thank you! sorry "
+        + "please yes no maybe what why how when where who which did does doing done don't can't "
+        + "won't I'm it's that's there's let's you're we're they're I think I know I'll I've do "
+        + "you have you are you is it going good great nice cool awesome right now today tomorrow "
+        + "yesterday tonight morning afternoon meeting later soon time work lunch coffee home "
+        + "again just really also still already about from with this that then than there their "
+        + "they have been would could should will was were what's going on here everyone guys "
+        + "hello hi hey bye see you 📢 SERVER left the chat joined the chat! 👋 joined # the and for "
+        + "not but all any some more one two new get got make know like want need look good day ").getBytes(StandardCharsets.UTF_8);
+    
+    // Reconnect backoff: a random wait up to a limit that doubles with every failed attempt,
+    // so clients dropped by the same server restart do not all come back at once
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    
+    // Longest name the server keeps (it cuts longer ones)
+    private static final int MAX_NAME_LENGTH = 32;
+    
+    // While the input has text, "typing" is sent again this often (the server forgets it after 6 s)
+    private static final long TYPING_REPEAT_MS = 3000;
+    
+    // How long closing the window waits for the quit to go out before exiting anyway
+    private static final long QUIT_TIMEOUT_MS = 2000;
+    
+    // Files are streamed in chunks of this size and saved here
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final File DOWNLOAD_DIR = new File(System.getProperty("user.home"), "ChatDownloads");
+    
+    // Full images fetched from the server's media store, cached by content hash
+    // (-Dchat.media-cache=DIR, at most -Dchat.media-cache-mb=N)
+    private static final MediaCache MEDIA_CACHE = new MediaCache(new File(System.getProperty("chat.media-cache",
+        new File(System.getProperty("user.home"), ".chatapp/media").getPath())),
+        Integer.getInteger("chat.media-cache-mb", 256) * 1024L * 1024);
+    
+    // Network components (replaced by every reconnect)
+    private volatile Socket socket;
+    private volatile PrintWriter out;
     private BufferedReader in;
     
+    // Binary protocol streams (used instead of in/out once negotiated)
+    private volatile boolean binary;
+    private DataOutputStream frameOut;
+    private DataInputStream frameIn;
+    
+    // Set once the server agreed to compression; the deflater is used under the sendFrame lock
+    private volatile boolean deflate;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    
+    // Session to resume after a dropped connection: the server's token and the last
+    // logged message seq it confirmed we read (binary protocol only)
+    private volatile String sessionToken;
+    private volatile long lastSeq;
+    
+    // Set when the window is closed: a dropped connection is not reconnected any more
+    private volatile boolean closing;
+    
+    // Online and typing users of our rooms (updated by the receiver, shown at most once per frame)
+    private final Roster roster = new Roster();
+    private final AtomicBoolean rosterScheduled = new AtomicBoolean();
+    
+    // When we last told the server we are typing (event dispatch thread only, 0 = not typing)
+    private long typingSentAt;
+    
+    // Messages and typing frames typed into the window go out on this thread, in order: sendFrame
+    // may wait behind a file upload, the event dispatch thread must not. Only the latest typing
+    // state waits to be sent (-1 = none)
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "message-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger typingPending = new AtomicInteger(-1);
+    
+    // Picked images are scaled and encoded on these threads, several at once (and full
+    // images decoded for viewing)
+    private final ImageEncoder imageEncoder = new ImageEncoder();
+    private final ExecutorService imageEncoders = Executors.newFixedThreadPool(
+        Math.min(4, Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "image-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    
+    // File transfers: uploads waiting for the server's offset, and files being received
+    private final Map<Long, CompletableFuture<Long>> pendingOffsets = new ConcurrentHashMap<>();
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
+    
     // UI Components
-    private JTextPane chatPane;
-    private StyledDocument chatDoc;
+    private ChatView chatView;
     private JTextField messageField;
     private JButton sendButton;
     private JButton imageButton;
+    private JProgressBar transferBar;
+    private JList<String> onlineList;
+    private JLabel onlineLabel;
+    private JLabel typingLabel;
     private String username;
     
-    // Message styles
-    private Style systemStyle;
-    private Style ownMessageStyle;
-    private Style otherMessageStyle;
-    private Style serverStyle;
-    private Style timestampStyle;
-    
     /**
      * Constructor - Setup UI
      */
@@ -69,22 +214,29 @@ public class Client extends JFrame {
             username = "User" + (int)(Math.random() * 1000);
         }
         
+        // Same name as the server uses, so our own messages are recognized
+        if (username.length() > MAX_NAME_LENGTH) {
+            username = username.substring(0, Character.isHighSurrogate(username.charAt(MAX_NAME_LENGTH - 1))
+                ? MAX_NAME_LENGTH - 1 : MAX_NAME_LENGTH);
+        }
+        
         // Window setup
         setTitle("💬 Chat Application - " + username);
-        setSize(600, 500);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(760, 500);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         setLocationRelativeTo(null); // Center on screen
         
         // Create UI
         createUI();
         
-        // Connect to server
-        connectToServer();
+        // Connect to server (in the background, retrying until it works)
+        connectInBackground(false);
         
         // Handle window close event
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
+                dispose();
                 disconnect();
             }
         });
@@ -110,20 +262,52 @@ public class Client extends JFrame {
         headerPanel.add(headerLabel);
         
         // ============ Chat Area ============
-        chatPane = new JTextPane();
-        chatPane.setEditable(false);
-        chatPane.setBackground(new Color(245, 245, 250));
-        chatPane.setMargin(new Insets(10, 10, 10, 10));
+        chatView = new ChatView(username);
         
-        // Setup styled document
-        chatDoc = chatPane.getStyledDocument();
-        initializeStyles();
+        // Click on a thumbnail to open the full image
+        chatView.list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                openMediaAt(e.getPoint());
+            }
+        });
         
         // Add scrollbar
-        JScrollPane scrollPane = new JScrollPane(chatPane);
+        JScrollPane scrollPane = new JScrollPane(chatView.list);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200), 1));
         
+        // ============ Online Users ============
+        onlineLabel = new JLabel("🟢 Online (0)");
+        onlineLabel.setFont(new Font("Segoe UI", Font.BOLD, 13));
+        
+        onlineList = new JList<>(new DefaultListModel<>());
+        onlineList.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        onlineList.setFocusable(false);
+        
+        // Same height for every name, so thousands of users are never measured one by one
+        onlineList.setPrototypeCellValue("MMMMMMMMMMMM");
+        
+        JScrollPane onlinePane = new JScrollPane(onlineList);
+        onlinePane.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200), 1));
+        
+        JPanel onlinePanel = new JPanel(new BorderLayout(0, 5));
+        onlinePanel.setBackground(new Color(240, 240, 245));
+        onlinePanel.setPreferredSize(new Dimension(140, 0));
+        onlinePanel.add(onlineLabel, BorderLayout.NORTH);
+        onlinePanel.add(onlinePane, BorderLayout.CENTER);
+        
+        // Who is typing, under the chat (a blank line when nobody is, so nothing moves)
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("Segoe UI", Font.ITALIC, 12));
+        typingLabel.setForeground(new Color(120, 120, 120));
+        
+        JPanel chatPanel = new JPanel(new BorderLayout(10, 2));
+        chatPanel.setBackground(new Color(240, 240, 245));
+        chatPanel.add(scrollPane, BorderLayout.CENTER);
+        chatPanel.add(typingLabel, BorderLayout.SOUTH);
+        chatPanel.add(onlinePanel, BorderLayout.EAST);
+        
         // ============ Bottom Panel (Message Input + Send Button) ============
         JPanel bottomPanel = new JPanel(new BorderLayout(10, 0));
         bottomPanel.setBackground(new Color(240, 240, 245));
@@ -193,6 +377,23 @@ public class Client extends JFrame {
         // Send message on Enter key press
         messageField.addActionListener(e -> sendMessage());
         
+        // Tell the others while we type
+        messageField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                typingChanged();
+            }
+            
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                typingChanged();
+            }
+            
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        });
+        
         // Button panel for image and send buttons
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
         buttonPanel.setBackground(new Color(240, 240, 245));
@@ -203,81 +404,211 @@ public class Client extends JFrame {
         bottomPanel.add(messageField, BorderLayout.CENTER);
         bottomPanel.add(buttonPanel, BorderLayout.EAST);
         
+        // File transfer progress (shown only while a file is sent or received)
+        transferBar = new JProgressBar(0, 100);
+        transferBar.setStringPainted(true);
+        transferBar.setVisible(false);
+        
+        JPanel southPanel = new JPanel(new BorderLayout(0, 5));
+        southPanel.setBackground(new Color(240, 240, 245));
+        southPanel.add(transferBar, BorderLayout.NORTH);
+        southPanel.add(bottomPanel, BorderLayout.CENTER);
+        
         // Add all components to main panel
         mainPanel.add(headerPanel, BorderLayout.NORTH);
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
-        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
+        mainPanel.add(chatPanel, BorderLayout.CENTER);
+        mainPanel.add(southPanel, BorderLayout.SOUTH);
         
         // Add main panel to frame
         add(mainPanel);
     }
     
     /**
-     * Initialize message styles with different colors
+     * Connect on a background thread, retrying with jittered backoff until it works
+     * reconnect waits before the first attempt too (the server may have just restarted)
      */
-    private void initializeStyles() {
-        // System messages (connections, errors)
-        systemStyle = chatPane.addStyle("System", null);
-        StyleConstants.setForeground(systemStyle, new Color(46, 125, 50));
-        StyleConstants.setFontSize(systemStyle, 13);
-        StyleConstants.setItalic(systemStyle, true);
-        
-        // Own messages
-        ownMessageStyle = chatPane.addStyle("Own", null);
-        StyleConstants.setForeground(ownMessageStyle, new Color(13, 71, 161));
-        StyleConstants.setFontSize(ownMessageStyle, 14);
-        StyleConstants.setBold(ownMessageStyle, true);
-        
-        // Other users' messages
-        otherMessageStyle = chatPane.addStyle("Other", null);
-        StyleConstants.setForeground(otherMessageStyle, new Color(74, 20, 140));
-        StyleConstants.setFontSize(otherMessageStyle, 14);
-        StyleConstants.setBold(otherMessageStyle, true);
-        
-        // Server messages
-        serverStyle = chatPane.addStyle("Server", null);
-        StyleConstants.setForeground(serverStyle, new Color(211, 47, 47));
-        StyleConstants.setFontSize(serverStyle, 13);
-        StyleConstants.setBold(serverStyle, true);
-        
-        // Timestamp
-        timestampStyle = chatPane.addStyle("Timestamp", null);
-        StyleConstants.setForeground(timestampStyle, new Color(117, 117, 117));
-        StyleConstants.setFontSize(timestampStyle, 11);
+    private void connectInBackground(boolean reconnect) {
+        Thread connector = new Thread(() -> {
+            for (int attempt = reconnect ? 1 : 0; !closing; attempt++) {
+                if (attempt > 0) {
+                    long limit = Math.min(RECONNECT_MAX_MS, RECONNECT_MIN_MS << Math.min(attempt, 16));
+                    long delay = 1 + ThreadLocalRandom.current().nextLong(limit);
+                    chatView.post(ChatView.systemRow(String.format("🔄 Reconnecting in %.1fs...", delay / 1000.0)));
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closing || connectToServer()) {
+                    return;
+                }
+            }
+        }, "connector");
+        connector.setDaemon(true);
+        connector.start();
     }
     
     /**
-     * Establish connection with server
+     * Establish connection with server (resuming the session when there is one)
+     * Returns false when the server could not be reached
      */
-    private void connectToServer() {
+    private boolean connectToServer() {
+        Socket socket = new Socket();
         try {
             // Create socket connection
-            appendSystemMessage("⏳ Connecting to " + serverHost + ":" + SERVER_PORT + "...");
-            socket = new Socket(serverHost, SERVER_PORT);
+            chatView.post(ChatView.systemRow("⏳ Connecting to " + serverHost + ":" + SERVER_PORT + "..."));
+            socket.connect(new InetSocketAddress(serverHost, SERVER_PORT), CONNECT_TIMEOUT_MS);
             
             // Setup input/output streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            String firstLine = null;
+            boolean binary = false;
+            
+            // Only servers that handed out a token understand resume
+            String session = sessionToken;
+            boolean resuming = session != null;
+            
+            if (PROTOCOL.equals("binary")) {
+                // Ask for binary frames (username goes with the handshake)
+                out.println("HELLO " + BINARY_PROTOCOL + " "
+                    + (resuming ? "resume:" + session + ":" + lastSeq + " " : "") + username);
+                socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+                firstLine = readLine(input);
+                socket.setSoTimeout(0);
+                binary = ("WELCOME " + BINARY_PROTOCOL).equals(firstLine);
+                
+                // Older servers do not answer the handshake, their first line is a chat message
+                if (firstLine != null && firstLine.startsWith("WELCOME ")) {
+                    firstLine = null;
+                }
+            } else {
+                // Send username to server
+                out.println(username);
+            }
+            
+            synchronized (this) {
+                this.socket = socket;
+                this.out = out;
+                this.binary = binary;
+                deflate = false;
+                if (binary) {
+                    frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    frameIn = new DataInputStream(input);
+                } else {
+                    in = new BufferedReader(new InputStreamReader(input));
+                }
+            }
             
-            // Send username to server
-            out.println(username);
+            if (binary) {
+                // Older servers skip these frames and never answer them
+                if (!COMPRESSION.equals("none")) {
+                    sendFrame(TYPE_COMPRESS, COMPRESSION.getBytes(StandardCharsets.UTF_8));
+                }
+                sendFrame(TYPE_SESSION, new byte[0]);
+                sendFrame(TYPE_PRESENCE, new byte[0]);
+            } else if (firstLine != null) {
+                chatView.post(ChatView.chatRow(firstLine));
+            }
             
             // Create separate thread to receive messages
             Thread messageReceiver = new Thread(new MessageReceiver());
             messageReceiver.start();
             
             // Connection successful message
-            appendSystemMessage("✅ Connected to server!");
+            chatView.post(ChatView.systemRow((resuming && binary ? "✅ Reconnected to server!" : "✅ Connected to server!")
+                + (binary ? "" : " (text mode)")));
+            return true;
             
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(
-                this,
-                "❌ Failed to connect to server!\nMake sure the server is running.",
-                "Connection Error",
-                JOptionPane.ERROR_MESSAGE
-            );
-            System.exit(1);
+            chatView.post(ChatView.systemRow("❌ Failed to connect to server! (" + e.getMessage() + ")"));
+            try {
+                socket.close();
+            } catch (IOException closeError) {
+                // Never connected
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Read one handshake line byte by byte (nothing after it is consumed)
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString();
+    }
+    
+    /**
+     * Send one binary frame (file uploads send from their own thread)
+     */
+    private synchronized void sendFrame(int type, byte[] payload) throws IOException {
+        if (frameOut == null) {
+            throw new IOException("Not connected with the binary protocol");
+        }
+        if (deflate && type == TYPE_TEXT && payload.length >= MIN_COMPRESS_LENGTH) {
+            byte[] compressed = deflate(payload);
+            if (compressed != null) {
+                type |= COMPRESSED;
+                payload = compressed;
+            }
+        }
+        frameOut.writeByte(type);
+        frameOut.writeInt(payload.length);
+        frameOut.write(payload);
+        frameOut.flush();
+    }
+    
+    /**
+     * Deflated bytes, or null when they would not be smaller (sendFrame lock held)
+     */
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+        
+        byte[] output = new byte[data.length];
+        int size = 0;
+        while (!deflater.finished() && size < output.length) {
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return deflater.finished() && size < data.length ? Arrays.copyOf(output, size) : null;
+    }
+    
+    /**
+     * Original bytes of a deflated frame from the server
+     */
+    static byte[] inflate(Inflater inflater, byte[] data) throws IOException {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data);
+        
+        // Sized for a typical ratio, but never more up front than a small frame needs
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(data.length * 3, 64 * 1024));
+        byte[] chunk = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                if (output.size() + count > MAX_FRAME_SIZE) {
+                    throw new IOException("Compressed frame too large");
+                }
+                output.write(chunk, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage());
         }
+        return output.toByteArray();
     }
     
     /**
@@ -289,7 +620,20 @@ public class Client extends JFrame {
         // Check for empty message
         if (!message.isEmpty() && out != null) {
             // Send message to server
-            out.println("TEXT:" + message);
+            if (binary) {
+                sender.execute(() -> {
+                    try {
+                        sendFrame(TYPE_TEXT, message.getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        SwingUtilities.invokeLater(() -> chatView.appendSystemMessage("❌ Failed to send: " + e.getMessage()));
+                    }
+                });
+            } else {
+                out.println("TEXT:" + message);
+            }
+            
+            // The server ends our typing with the message, clearing the field needs no frame
+            typingSentAt = 0;
             
             // Clear input field
             messageField.setText("");
@@ -300,222 +644,1673 @@ public class Client extends JFrame {
     }
     
     /**
-     * Select and send image
+     * Input changed: "typing" when it has text (again every TYPING_REPEAT_MS), "stopped" once it is empty
+     */
+    private void typingChanged() {
+        if (!binary) {
+            return;
+        }
+        
+        boolean typing = !messageField.getText().trim().isEmpty();
+        long now = System.currentTimeMillis();
+        if (typing && now - typingSentAt >= TYPING_REPEAT_MS) {
+            sendTyping(1);
+            typingSentAt = now;
+        } else if (!typing && typingSentAt != 0) {
+            sendTyping(0);
+            typingSentAt = 0;
+        }
+    }
+    
+    /**
+     * Hand a typing state to the sender thread (one that is still waiting is replaced)
+     */
+    private void sendTyping(int state) {
+        if (typingPending.getAndSet(state) != -1) {
+            return;
+        }
+        sender.execute(() -> {
+            try {
+                sendFrame(TYPE_TYPING, new byte[] {(byte) typingPending.getAndSet(-1)});
+            } catch (IOException e) {
+                // Not connected right now; sending a message will report it
+            }
+        });
+    }
+    
+    /**
+     * Show the roster on the event dispatch thread (once for all changes that arrive before it runs)
+     */
+    private void showRoster() {
+        if (!rosterScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            rosterScheduled.set(false);
+            List<String> users = roster.users();
+            DefaultListModel<String> model = new DefaultListModel<>();
+            for (String user : users) {
+                model.addElement(user);
+            }
+            onlineList.setModel(model);
+            onlineLabel.setText("🟢 Online (" + users.size() + ")");
+            typingLabel.setText(roster.typing(username));
+        });
+    }
+    
+    /**
+     * Select and send images (any other file is streamed as a file transfer)
      */
     private void selectAndSendImage() {
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("Select Image");
+        fileChooser.setDialogTitle("Select Images or Files");
+        fileChooser.setMultiSelectionEnabled(true);
         fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
             "Image Files", "jpg", "jpeg", "png", "gif", "bmp"));
         
         int result = fileChooser.showOpenDialog(this);
         
         if (result == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = fileChooser.getSelectedFile();
-            
-            try {
-                // Read image
-                BufferedImage image = ImageIO.read(selectedFile);
-                
-                if (image == null) {
-                    JOptionPane.showMessageDialog(this, 
-                        "Invalid image file!", 
-                        "Error", 
-                        JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                // Resize if too large (max 400px width)
-                int maxWidth = 400;
-                if (image.getWidth() > maxWidth) {
-                    int newHeight = (int)((double)maxWidth / image.getWidth() * image.getHeight());
-                    Image scaledImage = image.getScaledInstance(maxWidth, newHeight, Image.SCALE_SMOOTH);
-                    BufferedImage resizedImage = new BufferedImage(maxWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-                    Graphics2D g = resizedImage.createGraphics();
-                    g.drawImage(scaledImage, 0, 0, null);
-                    g.dispose();
-                    image = resizedImage;
-                }
-                
-                // Convert to Base64
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(image, "jpg", baos);
-                byte[] imageBytes = baos.toByteArray();
-                String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-                
-                // Send image data
-                if (out != null) {
-                    out.println("IMAGE:" + base64Image);
-                    appendSystemMessage("📷 Image sent!");
+            for (File selectedFile : fileChooser.getSelectedFiles()) {
+                if (!selectedFile.getName().toLowerCase().matches(".*\\.(jpg|jpeg|png|gif|bmp)")) {
+                    sendFile(selectedFile);
+                } else if (out != null) {
+                    // Encoded in the background, several images at once
+                    long selected = System.nanoTime();
+                    imageEncoders.execute(() -> sendImage(selectedFile, selected));
                 }
-                
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "Error loading image: " + e.getMessage(), 
-                    "Error", 
-                    JOptionPane.ERROR_MESSAGE);
-                e.printStackTrace();
             }
         }
     }
     
     /**
-     * Append system message (connections, errors)
+     * Encode and send one image (image encoder thread)
      */
-    private void appendSystemMessage(String message) {
+    private void sendImage(File file, long selected) {
         try {
-            chatDoc.insertString(chatDoc.getLength(), "\n" + message + "\n", systemStyle);
-            chatPane.setCaretPosition(chatDoc.getLength());
-        } catch (BadLocationException e) {
+            byte[] imageBytes = imageEncoder.encode(file);
+            if (imageBytes == null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Invalid image file: " + file.getName(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE));
+                return;
+            }
+            
+            // Send image data (raw bytes, or Base64 in text mode)
+            if (binary) {
+                // Keep our own copy so opening it needs no fetch
+                MEDIA_CACHE.put(hex(sha256(imageBytes)), imageBytes);
+                sendFrame(TYPE_IMAGE, imageBytes);
+            } else {
+                out.println("IMAGE:" + Base64.getEncoder().encodeToString(imageBytes));
+            }
+            
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - selected);
+            String sent = "📷 Image sent! (" + formatSize(imageBytes.length) + " in " + millis + " ms)";
+            SwingUtilities.invokeLater(() -> chatView.appendSystemMessage(sent));
+            
+        } catch (IOException | RuntimeException e) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                "Error loading image " + file.getName() + ": " + e.getMessage(),
+                "Error",
+                JOptionPane.ERROR_MESSAGE));
             e.printStackTrace();
         }
     }
     
     /**
-     * Append formatted chat message with username and timestamp
+     * Start streaming a file to the server in the background
      */
-    private void appendChatMessage(String fullMessage) {
-        try {
-            // Parse message format: [USERNAME TIMESTAMP]: MESSAGE
-            if (fullMessage.startsWith("[SERVER")) {
-                // Server announcement
-                chatDoc.insertString(chatDoc.getLength(), "\n📢 ", null);
-                
-                int endBracket = fullMessage.indexOf("]");
-                String content = fullMessage.substring(endBracket + 2).trim();
-                chatDoc.insertString(chatDoc.getLength(), content, serverStyle);
-                chatDoc.insertString(chatDoc.getLength(), "\n", null);
-                
-            } else if (fullMessage.startsWith("[")) {
-                // Regular user message
-                int endBracket = fullMessage.indexOf("]");
-                String headerPart = fullMessage.substring(1, endBracket);
-                String messagePart = fullMessage.substring(endBracket + 2).trim();
-                
-                // Split username and timestamp
-                int lastSpace = headerPart.lastIndexOf(" ");
-                String sender = headerPart.substring(0, lastSpace);
-                String timestamp = headerPart.substring(lastSpace + 1);
-                
-                // Add newline for spacing
-                chatDoc.insertString(chatDoc.getLength(), "\n", null);
-                
-                // Choose style based on sender
-                Style nameStyle = sender.equals(username) ? ownMessageStyle : otherMessageStyle;
-                
-                // Add sender name with emoji
-                String emoji = sender.equals(username) ? "💙 " : "💜 ";
-                chatDoc.insertString(chatDoc.getLength(), emoji + sender, nameStyle);
-                
-                // Add timestamp
-                chatDoc.insertString(chatDoc.getLength(), " • " + timestamp, timestampStyle);
-                
-                // Check if message is an image or text
-                if (messagePart.startsWith("IMAGE:")) {
-                    // Display image
-                    String base64Image = messagePart.substring(6);
-                    displayImage(base64Image);
-                } else if (messagePart.startsWith("TEXT:")) {
-                    // Display text message
-                    String textContent = messagePart.substring(5);
-                    Style messageTextStyle = chatPane.addStyle("MessageText", null);
-                    StyleConstants.setForeground(messageTextStyle, new Color(33, 33, 33));
-                    StyleConstants.setFontSize(messageTextStyle, 14);
-                    chatDoc.insertString(chatDoc.getLength(), "\n  " + textContent + "\n", messageTextStyle);
-                } else {
-                    // Legacy format without prefix
-                    Style messageTextStyle = chatPane.addStyle("MessageText", null);
-                    StyleConstants.setForeground(messageTextStyle, new Color(33, 33, 33));
-                    StyleConstants.setFontSize(messageTextStyle, 14);
-                    chatDoc.insertString(chatDoc.getLength(), "\n  " + messagePart + "\n", messageTextStyle);
+    private void sendFile(File file) {
+        if (!binary) {
+            JOptionPane.showMessageDialog(this,
+                "File sharing needs a server that supports the binary protocol.",
+                "Error",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        long transferId = ThreadLocalRandom.current().nextLong();
+        chatView.appendSystemMessage("📤 Sending " + file.getName() + " (" + formatSize(file.length()) + ")...");
+        
+        Thread uploader = new Thread(() -> uploadFile(file, transferId), "upload-" + file.getName());
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+    
+    /**
+     * Send file chunks from where the server says the transfer stopped
+     */
+    private void uploadFile(File file, long transferId) {
+        String name = file.getName();
+        long size = file.length();
+        
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            // Announce the transfer: id | name | size
+            ByteArrayOutputStream begin = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(begin);
+            data.writeLong(transferId);
+            data.writeUTF(name);
+            data.writeLong(size);
+            
+            CompletableFuture<Long> reply = new CompletableFuture<>();
+            pendingOffsets.put(transferId, reply);
+            sendFrame(TYPE_FILE_BEGIN, begin.toByteArray());
+            
+            long offset = reply.get(30, TimeUnit.SECONDS);
+            if (offset < 0) {
+                throw new IOException("rejected by server");
+            }
+            
+            // Stream chunks: id | offset | bytes
+            input.seek(offset);
+            byte[] chunk = new byte[FILE_CHUNK_SIZE];
+            while (offset < size) {
+                int count = input.read(chunk, 0, (int) Math.min(chunk.length, size - offset));
+                if (count < 0) {
+                    throw new EOFException("file got shorter while sending");
                 }
                 
-            } else {
-                // Fallback for any other format
-                chatDoc.insertString(chatDoc.getLength(), fullMessage + "\n", null);
+                ByteBuffer frame = ByteBuffer.allocate(16 + count);
+                frame.putLong(transferId).putLong(offset).put(chunk, 0, count);
+                sendFrame(TYPE_FILE_CHUNK, frame.array());
+                
+                offset += count;
+                showProgress("📤 " + name, offset, size);
             }
             
-            // Auto-scroll to bottom
-            chatPane.setCaretPosition(chatDoc.getLength());
+            SwingUtilities.invokeLater(() -> chatView.appendSystemMessage("✅ " + name + " sent!"));
             
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+        } catch (Exception e) {
+            showProgress("", 1, 1);
+            SwingUtilities.invokeLater(() -> chatView.appendSystemMessage("❌ Failed to send " + name + ": " + e.getMessage()));
+        } finally {
+            pendingOffsets.remove(transferId);
         }
     }
     
     /**
-     * Display image in chat
+     * Show transfer progress (hidden again once complete)
      */
-    private void displayImage(String base64Image) {
-        try {
-            // Decode Base64
-            byte[] imageBytes = Base64.getDecoder().decode(base64Image);
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+    private void showProgress(String label, long done, long total) {
+        int percent = total == 0 ? 100 : (int) (done * 100 / total);
+        SwingUtilities.invokeLater(() -> {
+            transferBar.setValue(percent);
+            transferBar.setString(label + " " + percent + "%");
+            transferBar.setVisible(done < total);
+            transferBar.getParent().revalidate();
+        });
+    }
+    
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+    
+    /**
+     * Open the full image of the thumbnail under the mouse (if any)
+     */
+    private void openMediaAt(Point point) {
+        String hash = chatView.mediaAt(point);
+        if (hash != null) {
+            openMedia(hash);
+        }
+    }
+    
+    /**
+     * Show a full image from the cache, or ask the server for it
+     */
+    private void openMedia(String hash) {
+        File cached = MEDIA_CACHE.get(hash);
+        if (cached != null) {
+            showFullImage(cached);
+            return;
+        }
+        
+        // Thumbnails shown before a reconnect that fell back to the text protocol
+        if (!binary) {
+            chatView.appendSystemMessage("⚠️ Full images can only be fetched over the binary protocol");
+            return;
+        }
+        
+        sender.execute(() -> {
+            try {
+                sendFrame(TYPE_MEDIA_FETCH, unhex(hash));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> chatView.appendSystemMessage("❌ Could not fetch image: " + e.getMessage()));
+            }
+        });
+    }
+    
+    /**
+     * Decode a full image on an image thread and show it in a dialog
+     * Photos larger than the screen are read with subsampling, so a 50 MP picture
+     * never becomes a 200 MB image
+     */
+    private void showFullImage(File file) {
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        imageEncoders.execute(() -> {
+            BufferedImage image;
+            try {
+                image = readFullImage(file, screen.width, screen.height);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                image = null;
+            }
             
-            if (image != null) {
-                // Insert newline and image
-                chatDoc.insertString(chatDoc.getLength(), "\n  ", null);
+            BufferedImage decoded = image;
+            SwingUtilities.invokeLater(() -> {
+                if (decoded == null) {
+                    chatView.appendImageError();
+                    return;
+                }
                 
-                // Insert image as icon
-                ImageIcon imageIcon = new ImageIcon(image);
-                Style imageStyle = chatPane.addStyle("ImageStyle", null);
-                StyleConstants.setIcon(imageStyle, imageIcon);
-                chatDoc.insertString(chatDoc.getLength(), " ", imageStyle);
+                JScrollPane imagePane = new JScrollPane(new JLabel(new ImageIcon(decoded)));
+                imagePane.setPreferredSize(new Dimension(
+                    Math.min(decoded.getWidth() + 20, 900), Math.min(decoded.getHeight() + 20, 700)));
                 
-                chatDoc.insertString(chatDoc.getLength(), "\n", null);
+                JDialog dialog = new JDialog(this, "🖼️ Image", false);
+                dialog.add(imagePane);
+                dialog.pack();
+                dialog.setLocationRelativeTo(this);
+                dialog.setVisible(true);
+            });
+        });
+    }
+    
+    /**
+     * Image read at no more than the given size (every step-th pixel), or null when it cannot be read
+     */
+    private static BufferedImage readFullImage(File file, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
             }
-            
-        } catch (Exception e) {
+            ImageReader reader = readers.next();
             try {
-                Style errorStyle = chatPane.addStyle("Error", null);
-                StyleConstants.setForeground(errorStyle, Color.RED);
-                chatDoc.insertString(chatDoc.getLength(), "\n  [Error displaying image]\n", errorStyle);
-            } catch (BadLocationException ex) {
-                ex.printStackTrace();
+                reader.setInput(input);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(
+                    (reader.getWidth(0) + maxWidth - 1) / Math.max(1, maxWidth),
+                    (reader.getHeight(0) + maxHeight - 1) / Math.max(1, maxHeight)));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
-            e.printStackTrace();
         }
     }
     
-    /**
-     * Disconnect from server
-     */
-    private void disconnect() {
+    private static byte[] sha256(byte[] data) {
         try {
-            if (out != null) {
-                out.println("/quit");
-            }
-            
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null) socket.close();
-            
-        } catch (IOException e) {
-            System.err.println("❌ Disconnect Error: " + e.getMessage());
+            return java.security.MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
     
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+    
+    private static byte[] unhex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+    
     /**
-     * MessageReceiver class - To receive messages from server
+     * Disconnect from server and exit (the window is already closed)
+     * The quit goes out on the sender thread after the messages still waiting there;
+     * a connection that takes nothing any more gets QUIT_TIMEOUT_MS
      */
-    private class MessageReceiver implements Runnable {
-        @Override
-        public void run() {
+    private void disconnect() {
+        closing = true;
+        CompletableFuture<Void> quit = CompletableFuture.runAsync(() -> {
             try {
-                String message;
-                
-                // Continuously receive messages from server
-                while ((message = in.readLine()) != null) {
-                    final String msg = message;
-                    
-                    // Use SwingUtilities to update UI
-                    SwingUtilities.invokeLater(() -> appendChatMessage(msg));
+                if (binary && frameOut != null) {
+                    sendFrame(TYPE_QUIT, new byte[0]);
+                } else if (out != null) {
+                    out.println("/quit");
                 }
-                
             } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    appendSystemMessage("❌ Disconnected from server!");
-                });
+                System.err.println("❌ Disconnect Error: " + e.getMessage());
+            }
+        }, sender);
+        
+        Thread exit = new Thread(() -> {
+            try {
+                quit.get(QUIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Not sent, close anyway
+            }
+            
+            try {
+                // The socket first: a reader blocked in read holds the stream's lock
+                if (socket != null) socket.close();
+                if (in != null) in.close();
+                if (frameIn != null) frameIn.close();
+                if (out != null) out.close();
+            } catch (IOException e) {
+                System.err.println("❌ Disconnect Error: " + e.getMessage());
+            }
+            System.exit(0);
+        }, "disconnect");
+        exit.start();
+    }
+    
+    /**
+     * Roster class - Online and typing users of every room we are in, kept from the
+     * server's presence frames: snapshot (1 = replaces the room's lists) | (kind | user)...
+     */
+    static class Roster {
+        private static final int ONLINE = 1;
+        private static final int OFFLINE = 2;
+        private static final int TYPING = 3;
+        private static final int IDLE = 4;
+        
+        // By room ("" = the default room)
+        private final Map<String, Set<String>> online = new HashMap<>();
+        private final Map<String, Set<String>> typing = new HashMap<>();
+        
+        synchronized void apply(String room, byte[] body) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+            if (data.readByte() == 1) {
+                online.remove(room);
+                typing.remove(room);
+            }
+            
+            Set<String> roomOnline = online.computeIfAbsent(room, key -> new HashSet<>());
+            Set<String> roomTyping = typing.computeIfAbsent(room, key -> new LinkedHashSet<>());
+            while (data.available() > 0) {
+                int kind = data.readByte();
+                String user = data.readUTF();
+                if (kind == ONLINE) {
+                    roomOnline.add(user);
+                } else if (kind == OFFLINE) {
+                    roomOnline.remove(user);
+                    roomTyping.remove(user);
+                } else if (kind == TYPING) {
+                    roomTyping.add(user);
+                } else if (kind == IDLE) {
+                    roomTyping.remove(user);
+                }
+            }
+        }
+        
+        /**
+         * A message from "user" or "user #room" ends its typing (the server sends no IDLE for it)
+         */
+        synchronized boolean sent(String sender) {
+            int split = sender.indexOf(" #");
+            Set<String> roomTyping = typing.get(split < 0 ? "" : sender.substring(split + 2));
+            return roomTyping != null && roomTyping.remove(split < 0 ? sender : sender.substring(0, split));
+        }
+        
+        synchronized void clear() {
+            online.clear();
+            typing.clear();
+        }
+        
+        /**
+         * Everyone online in any of our rooms, sorted
+         */
+        synchronized List<String> users() {
+            Set<String> users = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (Set<String> roomOnline : online.values()) {
+                users.addAll(roomOnline);
+            }
+            return new ArrayList<>(users);
+        }
+        
+        /**
+         * "alice is typing..." line for everyone but us (a blank line when nobody is)
+         */
+        synchronized String typing(String self) {
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> room : typing.entrySet()) {
+                for (String user : room.getValue()) {
+                    if (!user.equals(self)) {
+                        names.add(room.getKey().isEmpty() ? user : user + " (#" + room.getKey() + ")");
+                    }
+                }
+            }
+            
+            if (names.isEmpty()) {
+                return " ";
+            } else if (names.size() == 1) {
+                return "✏️ " + names.get(0) + " is typing...";
+            } else if (names.size() == 2) {
+                return "✏️ " + names.get(0) + " and " + names.get(1) + " are typing...";
+            }
+            return "✏️ " + names.size() + " people are typing...";
+        }
+    }
+    
+    /**
+     * MessageReceiver class - To receive messages from server
+     */
+    private class MessageReceiver implements Runnable {
+        // Parses messages and decodes images in arrival order, off the event dispatch thread
+        private final ExecutorService decoder = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "message-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // Streams of the connection this receiver was started for
+        private final boolean binary = Client.this.binary;
+        private final BufferedReader in = Client.this.in;
+        private final DataInputStream frameIn = Client.this.frameIn;
+        
+        @Override
+        public void run() {
+            try {
+                if (binary) {
+                    receiveFrames();
+                } else {
+                    String message;
+                    
+                    // Continuously receive messages from server
+                    while ((message = in.readLine()) != null) {
+                        final String msg = message;
+                        
+                        // Decoded in the background, shown with the next UI update
+                        show(() -> ChatView.chatRow(msg));
+                    }
+                }
+                
+            } catch (IOException e) {
+                // Dropped connection, handled below like the end of the stream
+            } finally {
+                if (!closing) {
+                    show(() -> ChatView.systemRow("❌ Disconnected from server!"));
+                }
+                decoder.shutdown();
+                
+                // Nobody is known to be online until the server sends the lists again
+                roster.clear();
+                showRoster();
+            }
+            
+            if (!closing) {
+                // Resume where we left off (the session token and last seq are kept)
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("❌ Disconnect Error: " + e.getMessage());
+                }
+                connectInBackground(true);
+            }
+        }
+        
+        /**
+         * Build a chat row on the decoder thread and post it to the view
+         */
+        private void show(Supplier<ChatView.Row> row) {
+            decoder.execute(() -> chatView.post(row.get()));
+        }
+        
+        /**
+         * Receive binary frames: type | length | sender | time (epoch millis) | body
+         */
+        private void receiveFrames() throws IOException {
+            // Times are shown in this computer's time zone (one formatter for this thread)
+            SimpleDateFormat timeFormat = new SimpleDateFormat("hh:mm a");
+            Inflater inflater = new Inflater(true);
+            
+            int type;
+            while ((type = frameIn.read()) != -1) {
+                int length = frameIn.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                byte[] payload = new byte[length];
+                frameIn.readFully(payload);
+                if ((type & COMPRESSED) != 0) {
+                    type &= ~COMPRESSED;
+                    payload = inflate(inflater, payload);
+                }
+                
+                // Split header and body
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+                String sender = frame.readUTF();
+                String timestamp = timeFormat.format(new Date(frame.readLong()));
+                byte[] body = new byte[frame.available()];
+                frame.readFully(body);
+                
+                if ((type == TYPE_TEXT || type == TYPE_IMAGE || type == TYPE_MEDIA_REF) && roster.sent(sender)) {
+                    showRoster();
+                }
+                
+                if (type == TYPE_COMPRESS) {
+                    // Server agreed (names the method) or not (empty)
+                    deflate = body.length > 0;
+                } else if (type == TYPE_SESSION) {
+                    // Token to resume with (sent again when our rooms change)
+                    sessionToken = new String(body, StandardCharsets.UTF_8);
+                } else if (type == TYPE_CHECKPOINT) {
+                    // Everything logged up to this seq has been read
+                    lastSeq = ByteBuffer.wrap(body).getLong();
+                } else if (type == TYPE_PRESENCE) {
+                    // Online and typing changes of one room ("SERVER #room", or the default room)
+                    roster.apply(sender.startsWith("SERVER #") ? sender.substring(8) : "", body);
+                    showRoster();
+                } else if (type == TYPE_FILE_OFFSET) {
+                    // Reply to one of our uploads
+                    ByteBuffer reply = ByteBuffer.wrap(body);
+                    CompletableFuture<Long> pending = pendingOffsets.get(reply.getLong());
+                    if (pending != null) {
+                        pending.complete(reply.getLong());
+                    }
+                } else if (type == TYPE_FILE_BEGIN) {
+                    beginDownload(sender, timestamp, body);
+                } else if (type == TYPE_FILE_CHUNK) {
+                    receiveChunk(body);
+                } else if (type == TYPE_MEDIA_REF) {
+                    show(() -> ChatView.mediaRow(sender, timestamp, body));
+                } else if (type == TYPE_MEDIA_DATA) {
+                    receiveMedia(body);
+                } else {
+                    final int frameType = type;
+                    show(() -> ChatView.frameRow(frameType, sender, timestamp, body));
+                }
+            }
+        }
+        
+        /**
+         * Full image we asked for: hash (32) | bytes (none when the server no longer has it)
+         */
+        private void receiveMedia(byte[] body) {
+            String hash = hex(Arrays.copyOf(body, 32));
+            if (body.length == 32) {
+                show(() -> ChatView.systemRow("⚠️ Image is no longer available"));
+                return;
+            }
+            
+            File cached = MEDIA_CACHE.put(hash, Arrays.copyOfRange(body, 32, body.length));
+            if (cached == null) {
+                show(() -> ChatView.systemRow("⚠️ Could not save the image"));
+                return;
+            }
+            showFullImage(cached);
+        }
+        
+        /**
+         * Someone started sharing a file: id | name | size
+         */
+        private void beginDownload(String sender, String timestamp, byte[] body) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+            long transferId = data.readLong();
+            String name = new File(data.readUTF()).getName();
+            long size = data.readLong();
+            
+            if (sender.equals(username)) {
+                // Our own upload
+                show(() -> ChatView.fileRow(sender, timestamp, name, size, ""));
+                return;
+            }
+            
+            File target = uniqueFile(name);
+            DOWNLOAD_DIR.mkdirs();
+            downloads.put(transferId, new Download(name, size, target));
+            show(() -> ChatView.fileRow(sender, timestamp, name, size, " - downloading..."));
+            
+            if (size == 0) {
+                finishDownload(transferId);
+            }
+        }
+        
+        /**
+         * Write one chunk where it belongs: id | offset | bytes
+         */
+        private void receiveChunk(byte[] body) {
+            ByteBuffer data = ByteBuffer.wrap(body);
+            long transferId = data.getLong();
+            long offset = data.getLong();
+            
+            Download download = downloads.get(transferId);
+            if (download == null) {
+                return;
+            }
+            
+            try {
+                if (offset != download.received) {
+                    // A chunk was dropped on the way (slow connection)
+                    throw new IOException("parts of the file were lost");
+                }
+                download.output.seek(offset);
+                download.output.write(body, 16, body.length - 16);
+                download.received += body.length - 16;
+                showProgress("📥 " + download.name, download.received, download.size);
+                
+                if (download.received == download.size) {
+                    finishDownload(transferId);
+                }
+            } catch (IOException e) {
+                downloads.remove(transferId);
+                download.close();
+                download.file.delete();
+                showProgress("", 1, 1);
+                show(() -> ChatView.systemRow("❌ Download of " + download.name + " failed: " + e.getMessage()));
+            }
+        }
+        
+        private void finishDownload(long transferId) {
+            Download download = downloads.remove(transferId);
+            download.close();
+            show(() -> ChatView.systemRow("📥 Saved " + download.name + " to " + download.file.getPath()));
+        }
+        
+        /**
+         * File in the download folder that does not exist yet ("name (1).ext" etc.)
+         */
+        private File uniqueFile(String name) {
+            File file = new File(DOWNLOAD_DIR, name);
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            for (int i = 1; file.exists(); i++) {
+                file = new File(DOWNLOAD_DIR, base + " (" + i + ")" + extension);
+            }
+            return file;
+        }
+    }
+    
+    /**
+     * ChatView class - The chat as a list of rows, of which only those in view are painted
+     * Keeps the last MAX_ROWS rows and, within fixed byte budgets, small encoded thumbnails
+     * and decoded pixels of the newest images (older ones become a placeholder; full images
+     * stay in the disk cache until clicked), so memory stays flat over long sessions.
+     * Rows are built (parsed, images decoded) by the static *Row methods on any thread
+     * and posted; the list takes them in one batch per frame on the event dispatch thread.
+     * Needs no window around the list, so it also works headless (see Benchmark)
+     */
+    static class ChatView {
+        private static final int MAX_ROWS = 2000;
+        private static final int MAX_IMAGE_WIDTH = 400;
+        
+        // Encoded thumbnails kept in rows, and decoded pixels kept for painting (rows in view and around them)
+        private static final long THUMBNAIL_BUDGET = 16L * 1024 * 1024;
+        private static final long PIXEL_BUDGET = 48L * 1024 * 1024;
+        
+        // Images up to this size are kept as the thumbnail, larger ones are re-encoded at display size
+        private static final int THUMBNAIL_MAX_BYTES = 64 * 1024;
+        
+        // Posted rows are added at most once per frame (about 60 per second)
+        private static final int FRAME_MILLIS = 16;
+        
+        // Message styles
+        private static final Font SYSTEM_FONT = new Font("Segoe UI", Font.ITALIC, 13);
+        private static final Color SYSTEM_COLOR = new Color(46, 125, 50);
+        private static final Font NAME_FONT = new Font("Segoe UI", Font.BOLD, 14);
+        private static final Color OWN_COLOR = new Color(13, 71, 161);
+        private static final Color OTHER_COLOR = new Color(74, 20, 140);
+        private static final Font SERVER_FONT = new Font("Segoe UI", Font.BOLD, 13);
+        private static final Color SERVER_COLOR = new Color(211, 47, 47);
+        private static final Font TIMESTAMP_FONT = new Font("Segoe UI", Font.PLAIN, 11);
+        private static final Color TIMESTAMP_COLOR = new Color(117, 117, 117);
+        private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+        private static final Color TEXT_COLOR = new Color(33, 33, 33);
+        private static final Color SELECTED_COLOR = new Color(220, 230, 245);
+        
+        // Row spacing: margin left and right, gap above every row, text indent below a header
+        private static final int MARGIN = 10;
+        private static final int GAP = 8;
+        private static final int INDENT = 12;
+        
+        final JList<Row> list;
+        private final RowModel model = new RowModel();
+        private final String username;
+        
+        // Image rows that still have their thumbnail, oldest first, and the thumbnails' size
+        private final ArrayDeque<Row> imageRows = new ArrayDeque<>();
+        private long thumbnailBytes;
+        
+        // Rows posted from other threads, waiting for the next frame
+        private final ConcurrentLinkedQueue<Row> posted = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Timer flushTimer = new Timer(FRAME_MILLIS, e -> flush());
+        
+        // Decoded images at display size
+        private final PixelCache pixels = new PixelCache(PIXEL_BUDGET);
+        
+        // Stands for an image that could not be decoded (so it is not tried on every paint)
+        private static final BufferedImage BROKEN = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        
+        ChatView(String username) {
+            this.username = username;
+            
+            list = new JList<Row>(model) {
+                @Override
+                public boolean getScrollableTracksViewportWidth() {
+                    // Rows wrap to the visible width instead of scrolling sideways
+                    return true;
+                }
+            };
+            list.setCellRenderer(new RowRenderer());
+            flushTimer.setRepeats(false);
+            list.setBackground(new Color(245, 245, 250));
+            
+            // Row heights depend on the width; make the list measure them again
+            list.addComponentListener(new ComponentAdapter() {
+                private int width;
+                
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    if (list.getWidth() != width) {
+                        width = list.getWidth();
+                        list.setFixedCellHeight(10);
+                        list.setFixedCellHeight(-1);
+                    }
+                }
+            });
+        }
+        
+        int size() {
+            return model.getSize();
+        }
+        
+        /**
+         * Hash of the full image behind the thumbnail at this point (null if none)
+         */
+        String mediaAt(Point point) {
+            int index = list.locationToIndex(point);
+            if (index < 0 || !list.getCellBounds(index, index).contains(point)) {
+                return null;
+            }
+            return model.getElementAt(index).mediaHash;
+        }
+        
+        /**
+         * Append system message (connections, errors)
+         */
+        void appendSystemMessage(String message) {
+            add(systemRow(message));
+        }
+        
+        /**
+         * Append formatted chat message with username and timestamp
+         */
+        void appendChatMessage(String fullMessage) {
+            add(chatRow(fullMessage));
+        }
+        
+        void appendImageError() {
+            add(errorRow());
+        }
+        
+        static Row systemRow(String message) {
+            return new Row(Row.SYSTEM, null, null, message);
+        }
+        
+        static Row errorRow() {
+            return new Row(Row.ERROR, null, null, "[Error displaying image]");
+        }
+        
+        /**
+         * Row for a line of the text protocol: [USERNAME TIMESTAMP]: MESSAGE
+         */
+        static Row chatRow(String fullMessage) {
+            if (fullMessage.startsWith("[SERVER")) {
+                // Server announcement
+                int endBracket = fullMessage.indexOf("]");
+                String content = fullMessage.substring(endBracket + 2).trim();
+                return new Row(Row.SERVER, null, null, content);
+                
+            } else if (fullMessage.startsWith("[")) {
+                // Regular user message
+                int endBracket = fullMessage.indexOf("]");
+                String headerPart = fullMessage.substring(1, endBracket);
+                String messagePart = fullMessage.substring(endBracket + 2).trim();
+                
+                // Split username and timestamp
+                int lastSpace = headerPart.lastIndexOf(" ");
+                String sender = headerPart.substring(0, lastSpace);
+                String timestamp = headerPart.substring(lastSpace + 1);
+                
+                // Check if message is an image or text
+                if (messagePart.startsWith("IMAGE:")) {
+                    // Display image
+                    try {
+                        return imageRow(sender, timestamp, Base64.getDecoder().decode(messagePart.substring(6)), null, null);
+                    } catch (IllegalArgumentException e) {
+                        return errorRow();
+                    }
+                } else if (messagePart.startsWith("TEXT:")) {
+                    // Display text message
+                    return new Row(Row.BODY, sender, timestamp, messagePart.substring(5));
+                } else {
+                    // Legacy format without prefix
+                    return new Row(Row.BODY, sender, timestamp, messagePart);
+                }
+                
+            } else {
+                // Fallback for any other format
+                return new Row(Row.PLAIN, null, null, fullMessage);
+            }
+        }
+        
+        /**
+         * Row for a message received as a binary frame
+         */
+        static Row frameRow(int type, String sender, String timestamp, byte[] body) {
+            if (sender.equals("SERVER") || sender.startsWith("SERVER #")) {
+                // Server announcement
+                return new Row(Row.SERVER, null, null, new String(body, StandardCharsets.UTF_8));
+            } else if (type == TYPE_IMAGE) {
+                return imageRow(sender, timestamp, body, null, null);
+            } else {
+                return new Row(Row.BODY, sender, timestamp, new String(body, StandardCharsets.UTF_8));
+            }
+        }
+        
+        /**
+         * Row for a shared file entry
+         */
+        static Row fileRow(String sender, String timestamp, String name, long size, String status) {
+            return new Row(Row.BODY, sender, timestamp, "📎 " + name + " (" + formatSize(size) + ")" + status);
+        }
+        
+        /**
+         * Row showing a shared image as its thumbnail; the full image is fetched when clicked
+         */
+        static Row mediaRow(String sender, String timestamp, byte[] body) {
+            ByteBuffer reference = ByteBuffer.wrap(body);
+            byte[] hash = new byte[32];
+            reference.get(hash);
+            long size = reference.getLong();
+            byte[] thumbnail = new byte[reference.remaining()];
+            reference.get(thumbnail);
+            
+            return imageRow(sender, timestamp, thumbnail, hex(hash), formatSize(size) + " - click to open");
+        }
+        
+        /**
+         * Image row; the image is decoded here so the event dispatch thread only paints it.
+         * A full image sent in the chat goes to the disk cache (opened by a click) and the row
+         * keeps a small thumbnail of it
+         */
+        private static Row imageRow(String sender, String timestamp, byte[] image, String mediaHash, String caption) {
+            Dimension size = imageSize(image);
+            if (size == null && mediaHash == null) {
+                return errorRow();
+            }
+            
+            Row row = new Row(Row.BODY, sender, timestamp, null);
+            row.mediaHash = mediaHash;
+            row.caption = caption;
+            if (size != null) {
+                row.imageWidth = Math.min(size.width, MAX_IMAGE_WIDTH);
+                row.imageHeight = (int) ((long) size.height * row.imageWidth / Math.max(1, size.width));
+                row.decoded = decode(image, row.imageWidth, row.imageHeight);
+                
+                if (mediaHash == null) {
+                    row.mediaHash = hex(sha256(image));
+                    MEDIA_CACHE.put(row.mediaHash, image);
+                }
+                row.image = image.length <= THUMBNAIL_MAX_BYTES || row.decoded == BROKEN
+                    ? image : thumbnail(row.decoded, image);
+            } else {
+                // Thumbnail could not be made, the full image can still be opened
+                row.text = "📷 Image";
+            }
+            return row;
+        }
+        
+        /**
+         * Display-size image encoded as JPEG (the original if that fails)
+         */
+        private static byte[] thumbnail(BufferedImage image, byte[] original) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                if (ImageIO.write(image, "jpg", output)) {
+                    return output.toByteArray();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return original;
+        }
+        
+        /**
+         * Drop an old row's thumbnail; it is shown as a placeholder from now on
+         */
+        private void evictImage(Row row) {
+            thumbnailBytes -= row.image.length;
+            row.image = null;
+            row.text = row.caption != null ? "📷 Image" : "📷 Image - click to open";
+            row.layoutWidth = -1;
+            pixels.remove(row);
+            
+            int index = model.indexOf(row);
+            if (index >= 0) {
+                model.changed(index);
+            }
+        }
+        
+        /**
+         * Hand a row over from any thread; it shows up with the next frame
+         */
+        void post(Row row) {
+            posted.add(row);
+            if (flushScheduled.compareAndSet(false, true)) {
+                // The timer is only touched on the event dispatch thread
+                SwingUtilities.invokeLater(flushTimer::restart);
+            }
+        }
+        
+        /**
+         * Add everything posted since the last frame in one go
+         */
+        private void flush() {
+            flushScheduled.set(false);
+            List<Row> batch = new ArrayList<>();
+            Row row;
+            while ((row = posted.poll()) != null) {
+                batch.add(row);
+            }
+            addAll(batch);
+        }
+        
+        /**
+         * Add one row now (event dispatch thread), after anything still waiting to be shown
+         */
+        void add(Row row) {
+            if (!posted.isEmpty()) {
+                flush();
+            }
+            addAll(Collections.singletonList(row));
+        }
+        
+        private void addAll(List<Row> rows) {
+            if (rows.isEmpty()) {
+                return;
+            }
+            
+            for (Row row : rows) {
+                if (row.sender != null) {
+                    // Messages outside #general come as "name #room"
+                    int tag = row.sender.lastIndexOf(" #");
+                    if (tag > 0) {
+                        row.room = row.sender.substring(tag + 1);
+                        row.sender = row.sender.substring(0, tag);
+                    }
+                    row.own = row.sender.equals(username);
+                    row.label = (row.own ? "💙 " : "💜 ") + row.sender;
+                    row.details = (row.room != null ? " in " + row.room : "") + " • " + row.time;
+                }
+                if (row.decoded != null) {
+                    pixels.put(row, row.decoded);
+                    row.decoded = null;
+                }
+            }
+            model.addAll(rows);
+            
+            // Keep thumbnails of the newest images within the budget (and none for rows no longer listed)
+            for (Row row : rows) {
+                if (row.image != null) {
+                    imageRows.addLast(row);
+                    thumbnailBytes += row.image.length;
+                }
+            }
+            while (!imageRows.isEmpty()
+                    && (thumbnailBytes > THUMBNAIL_BUDGET || model.indexOf(imageRows.peekFirst()) < 0)) {
+                evictImage(imageRows.removeFirst());
+            }
+            
+            // Auto-scroll to bottom
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+        
+        /**
+         * Width and height from the image header, without decoding the pixels
+         */
+        private static Dimension imageSize(byte[] data) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input);
+                    return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+        
+        /**
+         * Decoded image of a row for painting (rows scrolled back into view are decoded again)
+         */
+        private BufferedImage decoded(Row row) {
+            BufferedImage image = pixels.get(row);
+            if (image == null) {
+                image = decode(row.image, row.imageWidth, row.imageHeight);
+                pixels.put(row, image);
+            }
+            return image;
+        }
+        
+        /**
+         * Image at display size (BROKEN when it cannot be read). Large images are read
+         * with subsampling, so only about the pixels shown are ever decoded
+         */
+        private static BufferedImage decode(byte[] data, int width, int height) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    return BROKEN;
+                }
+                ImageReader reader = readers.next();
+                BufferedImage image;
+                try {
+                    reader.setInput(input);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int step = Math.max(1, reader.getWidth(0) / width);
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    image = reader.read(0, param);
+                } finally {
+                    reader.dispose();
+                }
+                
+                if (image.getWidth() != width) {
+                    image = ImageEncoder.scale(image, width, Math.max(1, height));
+                }
+                return image;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return BROKEN;
+            }
+        }
+        
+        /**
+         * Row class - One entry of the chat; the text is wrapped for one width at a time
+         */
+        static class Row {
+            static final RowStyle SYSTEM = new RowStyle(SYSTEM_FONT, SYSTEM_COLOR, "");
+            static final RowStyle SERVER = new RowStyle(SERVER_FONT, SERVER_COLOR, "📢 ");
+            static final RowStyle BODY = new RowStyle(TEXT_FONT, TEXT_COLOR, "");
+            static final RowStyle PLAIN = BODY;
+            static final RowStyle ERROR = new RowStyle(TEXT_FONT, Color.RED, "");
+            
+            final RowStyle style;
+            String sender;
+            String room;
+            boolean own;
+            
+            // Header as painted: sender with emoji, and room and time after it
+            String label;
+            String details;
+            final String time;
+            String text;
+            
+            // Encoded thumbnail (null when there is none or it was evicted) and the display size
+            byte[] image;
+            int imageWidth;
+            int imageHeight;
+            
+            // Image decoded while the row was built, until the list takes it over
+            BufferedImage decoded;
+            
+            // Shared images: hash of the full image and the line below the thumbnail
+            String mediaHash;
+            String caption;
+            
+            // Position in the list (see RowModel), -1 until added
+            long seq = -1;
+            
+            // Layout for layoutWidth: wrapped text lines and total height
+            int layoutWidth = -1;
+            List<String> lines;
+            int height;
+            
+            Row(RowStyle style, String sender, String time, String text) {
+                this.style = style;
+                this.sender = sender;
+                this.time = time;
+                this.text = text;
+            }
+            
+            /**
+             * Plain text of the row (copied with Ctrl+C)
+             */
+            @Override
+            public String toString() {
+                String body = text != null ? text : image != null || mediaHash != null ? "📷 Image" : "";
+                return sender != null ? sender + (room != null ? " in " + room : "") + " • " + time + ": " + body : body;
+            }
+        }
+        
+        /**
+         * RowStyle class - Font, color and prefix of a kind of row, shared by all rows of that kind
+         */
+        static final class RowStyle {
+            final Font font;
+            final Color color;
+            final String prefix;
+            
+            // Measured once, on the event dispatch thread
+            private FontMetrics metrics;
+            
+            RowStyle(Font font, Color color, String prefix) {
+                this.font = font;
+                this.color = color;
+                this.prefix = prefix;
+            }
+            
+            FontMetrics metrics(JComponent component) {
+                if (metrics == null) {
+                    metrics = component.getFontMetrics(font);
+                }
+                return metrics;
+            }
+        }
+        
+        /**
+         * PixelCache class - Decoded images by row within a byte budget, least recently painted dropped first
+         */
+        private static class PixelCache {
+            private final long budget;
+            private final LinkedHashMap<Row, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+            private long bytes;
+            
+            PixelCache(long budget) {
+                this.budget = budget;
+            }
+            
+            BufferedImage get(Row row) {
+                return images.get(row);
+            }
+            
+            void put(Row row, BufferedImage image) {
+                remove(row);
+                images.put(row, image);
+                bytes += bytes(image);
+                
+                // The image just added always stays (it is being painted)
+                Iterator<BufferedImage> eldest = images.values().iterator();
+                while (bytes > budget && images.size() > 1) {
+                    bytes -= bytes(eldest.next());
+                    eldest.remove();
+                }
+            }
+            
+            void remove(Row row) {
+                BufferedImage image = images.remove(row);
+                if (image != null) {
+                    bytes -= bytes(image);
+                }
+            }
+            
+            private static long bytes(BufferedImage image) {
+                return (long) image.getWidth() * image.getHeight() * 4;
+            }
+        }
+        
+        /**
+         * RowModel class - The last MAX_ROWS rows in a ring (dropping the oldest costs nothing)
+         */
+        private static class RowModel extends AbstractListModel<Row> {
+            private static final long serialVersionUID = 1L;
+            
+            private final Row[] rows = new Row[MAX_ROWS];
+            private long first;
+            private long next;
+            
+            @Override
+            public int getSize() {
+                return (int) (next - first);
+            }
+            
+            @Override
+            public Row getElementAt(int index) {
+                return rows[(int) ((first + index) % MAX_ROWS)];
+            }
+            
+            void addAll(List<Row> added) {
+                // Only the newest MAX_ROWS of a large batch are kept at all
+                List<Row> kept = added.subList(Math.max(0, added.size() - MAX_ROWS), added.size());
+                
+                int removed = Math.max(0, getSize() + kept.size() - MAX_ROWS);
+                if (removed > 0) {
+                    for (int i = 0; i < removed; i++) {
+                        rows[(int) (first % MAX_ROWS)] = null;
+                        first++;
+                    }
+                    fireIntervalRemoved(this, 0, removed - 1);
+                }
+                
+                int start = getSize();
+                for (Row row : kept) {
+                    row.seq = next;
+                    rows[(int) (next % MAX_ROWS)] = row;
+                    next++;
+                }
+                fireIntervalAdded(this, start, getSize() - 1);
+            }
+            
+            int indexOf(Row row) {
+                return row.seq >= first ? (int) (row.seq - first) : -1;
+            }
+            
+            void changed(int index) {
+                fireContentsChanged(this, index, index);
+            }
+        }
+        
+        /**
+         * RowRenderer class - Measures and paints one row (the list only asks for rows in view)
+         */
+        private class RowRenderer extends JComponent implements ListCellRenderer<Row> {
+            private static final long serialVersionUID = 1L;
+            
+            private Row row;
+            private boolean selected;
+            private int width;
+            
+            // Header fonts, measured once
+            private final FontMetrics nameMetrics = getFontMetrics(NAME_FONT);
+            private final FontMetrics timestampMetrics = getFontMetrics(TIMESTAMP_FONT);
+            
+            @Override
+            public Component getListCellRendererComponent(JList<? extends Row> list, Row value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                row = value;
+                selected = isSelected;
+                width = list.getWidth() > 0 ? list.getWidth() : 560;
+                layout(row, width);
+                return this;
+            }
+            
+            @Override
+            public Dimension getPreferredSize() {
+                return new Dimension(width, row.height);
+            }
+            
+            /**
+             * Wrap the text and work out the height (only when the width changed)
+             */
+            private void layout(Row row, int width) {
+                if (row.layoutWidth == width) {
+                    return;
+                }
+                
+                int y = GAP;
+                if (row.sender != null) {
+                    y += nameMetrics.getHeight();
+                }
+                if (row.text != null) {
+                    FontMetrics metrics = row.style.metrics(this);
+                    int indent = row.sender != null ? INDENT : 0;
+                    row.lines = wrap(row.style.prefix + row.text, metrics, width - 2 * MARGIN - indent);
+                    y += row.lines.size() * metrics.getHeight();
+                } else {
+                    row.lines = Collections.emptyList();
+                }
+                if (row.image != null) {
+                    y += 4 + row.imageHeight;
+                }
+                if (row.caption != null) {
+                    y += timestampMetrics.getHeight();
+                }
+                
+                row.height = y + 4;
+                row.layoutWidth = width;
+            }
+            
+            @Override
+            protected void paintComponent(Graphics graphics) {
+                Graphics2D g = (Graphics2D) graphics;
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                if (selected) {
+                    g.setColor(SELECTED_COLOR);
+                    g.fillRect(0, 0, getWidth(), getHeight());
+                }
+                
+                int x = MARGIN;
+                int y = GAP;
+                if (row.sender != null) {
+                    // Sender (with emoji), room outside #general, time
+                    int baseline = y + nameMetrics.getAscent();
+                    g.setFont(NAME_FONT);
+                    g.setColor(row.own ? OWN_COLOR : OTHER_COLOR);
+                    g.drawString(row.label, x, baseline);
+                    
+                    g.setFont(TIMESTAMP_FONT);
+                    g.setColor(TIMESTAMP_COLOR);
+                    g.drawString(row.details, x + nameMetrics.stringWidth(row.label), baseline);
+                    
+                    y += nameMetrics.getHeight();
+                    x += INDENT;
+                }
+                
+                if (!row.lines.isEmpty()) {
+                    FontMetrics metrics = row.style.metrics(this);
+                    g.setFont(row.style.font);
+                    g.setColor(row.style.color);
+                    for (String line : row.lines) {
+                        g.drawString(line, x, y + metrics.getAscent());
+                        y += metrics.getHeight();
+                    }
+                }
+                
+                if (row.image != null) {
+                    y += 4;
+                    BufferedImage image = decoded(row);
+                    if (image != BROKEN) {
+                        g.drawImage(image, x, y, null);
+                    } else {
+                        g.setColor(Color.RED);
+                        g.drawString("[Error displaying image]", x, y + g.getFontMetrics().getAscent());
+                    }
+                    y += row.imageHeight;
+                }
+                
+                if (row.caption != null) {
+                    g.setFont(TIMESTAMP_FONT);
+                    g.setColor(TIMESTAMP_COLOR);
+                    g.drawString(row.caption, x, y + timestampMetrics.getAscent());
+                }
+            }
+        }
+        
+        /**
+         * Split text into lines that fit the width (at spaces where possible)
+         */
+        private static List<String> wrap(String text, FontMetrics metrics, int width) {
+            List<String> lines = new ArrayList<>();
+            int space = metrics.charWidth(' ');
+            for (String paragraph : text.split("\n", -1)) {
+                StringBuilder line = new StringBuilder();
+                int lineWidth = 0;
+                for (String word : paragraph.split(" ", -1)) {
+                    // Each word is measured once and the line width added up
+                    int wordWidth = metrics.stringWidth(word);
+                    int candidate = line.length() == 0 ? wordWidth : lineWidth + space + wordWidth;
+                    if (candidate <= width) {
+                        if (line.length() > 0) {
+                            line.append(' ');
+                        }
+                        line.append(word);
+                        lineWidth = candidate;
+                        continue;
+                    }
+                    if (line.length() > 0) {
+                        lines.add(line.toString());
+                        line.setLength(0);
+                    }
+                    
+                    // A word longer than the line is split anywhere (one pass over its characters)
+                    while (wordWidth > width) {
+                        int end = 0;
+                        int endWidth = 0;
+                        while (end < word.length()) {
+                            int charWidth = metrics.charWidth(word.codePointAt(end));
+                            if (end > 0 && endWidth + charWidth > width) {
+                                break;
+                            }
+                            endWidth += charWidth;
+                            end = word.offsetByCodePoints(end, 1);
+                        }
+                        if (end == word.length()) {
+                            break;
+                        }
+                        lines.add(word.substring(0, end));
+                        word = word.substring(end);
+                        wordWidth = metrics.stringWidth(word);
+                    }
+                    line.append(word);
+                    lineWidth = wordWidth;
+                }
+                lines.add(line.toString());
+            }
+            return lines;
+        }
+    }
+    
+    /**
+     * ImageEncoder class - Turns a picked image file into what is sent: scaled down to the
+     * target width in halving bilinear steps, then JPEG at the set quality (lowered until it
+     * fits the size target) or PNG when the image has transparency
+     */
+    static class ImageEncoder {
+        // Targets, e.g. java -Dchat.image.width=800 -Dchat.image.quality=0.9 -Dchat.image.max-kb=512 Client
+        private static final int WIDTH = Integer.getInteger("chat.image.width", 400);
+        private static final float QUALITY = Float.parseFloat(System.getProperty("chat.image.quality", "0.85"));
+        private static final int MAX_BYTES = Integer.getInteger("chat.image.max-kb", 256) * 1024;
+        
+        // Quality is not lowered below this to meet the size target
+        private static final float MIN_QUALITY = 0.4f;
+        
+        private final int width;
+        private final float quality;
+        private final int maxBytes;
+        
+        ImageEncoder() {
+            this(WIDTH, QUALITY, MAX_BYTES);
+        }
+        
+        ImageEncoder(int width, float quality, int maxBytes) {
+            this.width = width;
+            this.quality = quality;
+            this.maxBytes = maxBytes;
+        }
+        
+        /**
+         * Encoded image, or null when the file is not an image
+         */
+        byte[] encode(File file) throws IOException {
+            try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+                return input != null ? encode(input) : null;
+            }
+        }
+        
+        byte[] encode(byte[] data) throws IOException {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+                return encode(input);
+            }
+        }
+        
+        private byte[] encode(ImageInputStream input) throws IOException {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            BufferedImage image;
+            try {
+                reader.setInput(input);
+                
+                // Big photos are read at no more than twice the target width
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, reader.getWidth(0) / (2 * width));
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+            
+            if (image.getWidth() > width) {
+                int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+                image = scale(image, width, height);
+            }
+            
+            if (image.getColorModel().hasAlpha()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", output);
+                return output.toByteArray();
+            }
+            
+            byte[] encoded = jpeg(image, quality);
+            for (float q = quality * 0.75f; encoded.length > maxBytes && q >= MIN_QUALITY; q *= 0.75f) {
+                encoded = jpeg(image, q);
+            }
+            return encoded;
+        }
+        
+        /**
+         * Scale down in steps that at most halve the size, so bilinear filtering never skips pixels
+         */
+        static BufferedImage scale(BufferedImage image, int width, int height) {
+            int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            BufferedImage current = image;
+            int w = image.getWidth();
+            int h = image.getHeight();
+            do {
+                w = Math.max(width, w / 2);
+                h = Math.max(height, h / 2);
+                
+                BufferedImage next = new BufferedImage(w, h, type);
+                Graphics2D g = next.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(current, 0, 0, w, h, null);
+                g.dispose();
+                current = next;
+            } while (w != width || h != height);
+            return current;
+        }
+        
+        static byte[] jpeg(BufferedImage image, float quality) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                writer.setOutput(stream);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            return output.toByteArray();
+        }
+    }
+    
+    /**
+     * MediaCache class - Full images on disk by content hash within a byte budget,
+     * least recently opened deleted first (a file's time is when it was last opened)
+     */
+    static class MediaCache {
+        private final File dir;
+        private final long budget;
+        
+        MediaCache(File dir, long budget) {
+            this.dir = dir;
+            this.budget = budget;
+        }
+        
+        /**
+         * Cached file of an image (marked as just used), or null
+         */
+        File get(String hash) {
+            File file = new File(dir, hash);
+            if (!file.isFile()) {
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        
+        /**
+         * Save full image bytes under their hash (written once, read many times) and drop
+         * the least recently used images over the budget
+         * Returns the file, or null when it could not be written
+         */
+        synchronized File put(String hash, byte[] data) {
+            File file = new File(dir, hash);
+            if (file.exists()) {
+                file.setLastModified(System.currentTimeMillis());
+                return file;
+            }
+            
+            try {
+                dir.mkdirs();
+                File temp = File.createTempFile("media", ".tmp", dir);
+                try (FileOutputStream output = new FileOutputStream(temp)) {
+                    output.write(data);
+                }
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    return null;
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Media cache error: " + e.getMessage());
+                return null;
+            }
+            
+            trim(file);
+            return file;
+        }
+        
+        /**
+         * Delete the oldest files until the rest fits the budget (the new one always stays)
+         */
+        private void trim(File keep) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            if (total <= budget) {
+                return;
+            }
+            
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (total <= budget) {
+                    break;
+                }
+                long length = file.length();
+                if (!file.equals(keep) && file.delete()) {
+                    total -= length;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Download class - A file being received chunk by chunk
+     */
+    private static class Download {
+        final String name;
+        final long size;
+        final File file;
+        final RandomAccessFile output;
+        long received;
+        
+        Download(String name, long size, File file) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.file = file;
+            file.getParentFile().mkdirs();
+            this.output = new RandomAccessFile(file, "rw");
+        }
+        
+        void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                System.err.println("❌ Download Error: " + e.getMessage());
             }
         }
     }
@@ -1,22 +1,289 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.text.SimpleDateFormat;
+import java.lang.management.ManagementFactory;
+import javax.imageio.ImageIO;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * Chat Server Application
  * This server handles all client connections and relays messages
+ *
+ * Usage: java Server [--mode=threads|virtual|nio] [--reactors=N]
+ *                    [--queue-size=N] [--slow-policy=drop-oldest|drop-images|disconnect]
+ *                    [--media-dir=DIR] [--log-dir=DIR] [--history=N] [--port=N]
+ *                    [--cluster-port=N --node-id=ID --peers=host:port,...]
+ *                    [--metrics-port=N] [--event-dir=DIR] [--log-messages=N]
+ *                    [--max-messages=N] [--max-bytes-kb=N] [--max-frame-kb=N]
+ *   threads - one thread per client (default)
+ *   virtual - one virtual thread per client (Java 21+)
+ *   nio     - non-blocking selector loop with a fixed pool of reactor threads
+ *
+ * Clients that open with "HELLO binary/2 <name>" switch to length-prefixed binary
+ * frames; older clients that just send their name keep using text lines. Binary
+ * clients can then ask for compression: text frames are deflated (with a preset
+ * dictionary) once per message and the same bytes go to every such recipient.
+ * Binary clients can also stream files in chunks, which are relayed as they arrive.
+ * A binary client that asks for a session gets a resume token and, after each write,
+ * the seq of the last logged message written to it; when it reconnects with
+ * "HELLO binary/2 resume:<token>:<seq> <name>" it rejoins its rooms quietly and gets
+ * only the messages it missed instead of the usual replay.
+ * Shared images are stored once by content hash; binary clients receive a hash and a
+ * thumbnail and fetch the full image on demand.
+ *
+ * Chat messages are appended to a segmented log on disk; a joining client gets the
+ * last N of them replayed, and "/history N" or "/history since HH:mm" asks for more.
+ *
+ * Everyone is in the #general room; "/join room", "/leave [room]" and "/rooms" manage
+ * more rooms over the same connection, and messages go to the room joined last.
+ * Binary clients that ask for presence get each room's online and typing users once,
+ * then only the changes, coalesced per room every PRESENCE_INTERVAL_MS. Join and leave
+ * announcements, of the chat and of rooms, are coalesced per ANNOUNCE_INTERVAL_MS
+ * ("alice, bob and 40 others have joined the chat").
+ *
+ * With --cluster-port several servers form one chat: they link to each other over TCP
+ * and relay room messages to the nodes that have members in the room.
+ *
+ * Every client has a bounded outbound queue; when a slow client lets it fill up,
+ * the slow-policy decides what is dropped (or whether the client is disconnected).
+ * Inbound traffic is rate limited per connection and per user (messages and bytes a
+ * second, token buckets): a client over its burst has its reads paused, one that keeps
+ * flooding is disconnected, and no line or frame may exceed --max-frame-kb.
+ *
+ * Counters and histograms (clients, messages and bytes by frame type, fan-out time,
+ * queue depths) are registered with JMX and, with --metrics-port, served for scraping
+ * at http://127.0.0.1:N/metrics. Joins, leaves, errors and chat messages go through
+ * a bounded ring buffer to a background thread that writes them to rotating files
+ * and the console (chat messages at most --log-messages per second, 0 = none).
  */
 public class Server {
     // Server port number
-    private static final int PORT = 5000;
+    private static int port = 5000;
     
-    // List to keep connected clients
-    private static Set<ClientHandler> clientHandlers = new HashSet<>();
+    // Connection backlog for the non-blocking mode (accept bursts of many clients)
+    private static final int NIO_BACKLOG = 1024;
+    
+    // Size of the shared read buffer of each reactor thread
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    
+    // Frames smaller than this are coalesced into a single socket write
+    private static final int WRITE_BATCH_SIZE = 64 * 1024;
+    
+    // Encoded frames of at least this size get a direct buffer in nio mode; smaller ones
+    // (texts, control and presence frames) are cheaper to copy on write than to allocate off-heap
+    private static final int DIRECT_BUFFER_MIN_SIZE = 16 * 1024;
+    
+    // Charset used by the text protocol (same as the original reader/writer)
+    private static final Charset CHARSET = Charset.defaultCharset();
+    
+    // Time format of the text protocol, and the last rendered minute
+    private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("hh:mm a");
+    private static volatile RenderedTime renderedTime;
+    
+    // Binary protocol: type (1 byte) | length (4 bytes) | payload
+    // (binary/2 sends the time as epoch millis; binary/1 clients fall back to text lines)
+    private static final String BINARY_PROTOCOL = "binary/2";
+    private static final int TYPE_TEXT = 1;
+    private static final int TYPE_IMAGE = 2;
+    private static final int TYPE_QUIT = 3;
+    private static final int TYPE_FILE_BEGIN = 4;
+    private static final int TYPE_FILE_CHUNK = 5;
+    private static final int TYPE_FILE_OFFSET = 6;
+    private static final int TYPE_MEDIA_REF = 7;
+    private static final int TYPE_MEDIA_FETCH = 8;
+    private static final int TYPE_MEDIA_DATA = 9;
+    private static final int TYPE_COMPRESS = 10;
+    private static final int TYPE_SESSION = 11;
+    private static final int TYPE_CHECKPOINT = 12;
+    private static final int TYPE_TYPING = 13;
+    private static final int TYPE_PRESENCE = 14;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    
+    // Wire format of a connection: text lines, binary frames, or binary with deflated text frames
+    static final int TEXT_FORMAT = 0;
+    static final int BINARY_FORMAT = 1;
+    static final int DEFLATE_FORMAT = 2;
+    
+    // Connected clients by id - safe to iterate while other threads join and leave
+    private static final Map<Long, Connection> clientHandlers = new ConcurrentHashMap<>();
+    
+    // Rooms by name; every client is in the default room plus the rooms it joined
+    private static final String DEFAULT_ROOM = "general";
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final long ROOM_REPORT_INTERVAL_MS = 60 * 1000;
+    
+    // Presence changes go out at most this often per room; typing ends without a refresh
+    private static final long PRESENCE_INTERVAL_MS = 250;
+    private static final long TYPING_TIMEOUT_MS = 6000;
+    
+    // Joins and leaves are announced together at most this often, naming this many users
+    // (every announcement goes to every member of the room: in #general that is everyone)
+    private static final long ANNOUNCE_INTERVAL_MS = 1000;
+    private static final int ANNOUNCED_NAMES = 3;
+    
+    // Source of per-client ids
+    private static final AtomicLong nextClientId = new AtomicLong(1);
+    
+    // File transfers being relayed, by transfer id (kept a while after a disconnect for resume)
+    private static final Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+    private static final long TRANSFER_TIMEOUT_MS = 10 * 60 * 1000;
+    
+    // Execution mode and number of reactor threads (nio mode only)
+    private static String mode = "threads";
+    private static int reactorCount = Runtime.getRuntime().availableProcessors();
+    
+    // Blocking work of nio clients (image store and thumbnails, media reads), kept off the reactors
+    private static final int WORKER_COUNT = 4;
+    private static Executor workers;
+    
+    // Outbound queue capacity (frames) and what to do when a client falls behind
+    private static int queueCapacity = 256;
+    private static String slowPolicy = "drop-images";
+    
+    // Shared images, stored once by content hash
+    private static String mediaDir = "media";
+    private static MediaStore mediaStore;
+    
+    // Chat history on disk, and how many messages a joining client gets replayed
+    private static String logDir = "log";
+    private static int historySize = 50;
+    static MessageLog messageLog;
+    
+    // Cluster mode: this node's id, where other nodes connect, and which nodes to connect to
+    private static String nodeId;
+    private static int clusterPort;
+    private static List<InetSocketAddress> peers = new ArrayList<>();
+    private static MessageBus bus = new LocalBus();
+    
+    // Instrumentation and the local scrape port (0 = off)
+    static final Metrics metrics = new Metrics();
+    private static int metricsPort;
+    
+    // Server events: where their files go and how many chat messages a second reach the console
+    static final EventLog events = new EventLog();
+    private static String eventDir = "events";
+    private static int consoleMessageRate = 10;
+    
+    // Inbound rate limits per connection and per user (0 = off), and the largest line or frame
+    // a client may send; reads pause while a client is over its burst, a client more than
+    // MAX_THROTTLE_MS over it is disconnected
+    private static int messageRate = 20;
+    private static int byteRate = 4 * 1024 * 1024;
+    private static final int RATE_BURST_SECONDS = 2;
+    private static final long MAX_THROTTLE_MS = 10 * 1000;
+    private static int maxFrameSize = MAX_FRAME_SIZE;
+    private static int maxLineLength = maxLineLength(maxFrameSize);
+    
+    // Longest user name in characters (a longer one is cut at the handshake); names go into
+    // every frame header, which holds at most 64 KB of UTF-8
+    private static final int MAX_NAME_LENGTH = 32;
+    
+    // Limits shared by all connections of one user (idle entries are swept every minute)
+    static final Map<String, Limits> userLimits = new ConcurrentHashMap<>();
+    private static final long LIMITS_EXPIRY_MS = 60 * 1000;
+    private static final AtomicLong limitsExpired = new AtomicLong(System.currentTimeMillis());
     
     public static void main(String[] args) {
+        parseArgs(args);
+        
+        // Thumbnails are drawn without a display
+        System.setProperty("java.awt.headless", "true");
+        mediaStore = new MediaStore(Paths.get(mediaDir));
+        
+        try {
+            messageLog = new MessageLog(Paths.get(logDir));
+        } catch (IOException e) {
+            System.err.println("❌ Cannot open message log: " + e.getMessage());
+            return;
+        }
+        Thread logThread = new Thread(messageLog, "message-log");
+        logThread.setDaemon(true);
+        logThread.start();
+        
+        try {
+            events.start(Paths.get(eventDir), consoleMessageRate);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot open event log: " + e.getMessage());
+            return;
+        }
+        metrics.register();
+        if (metricsPort > 0) {
+            try {
+                metrics.serve(metricsPort);
+            } catch (IOException e) {
+                System.err.println("❌ Cannot start metrics endpoint: " + e.getMessage());
+                return;
+            }
+        }
+        
+        Thread roomStats = new Thread(Server::reportRooms, "room-stats");
+        roomStats.setDaemon(true);
+        roomStats.start();
+        
+        Thread presence = new Thread(Server::publishPresence, "presence");
+        presence.setDaemon(true);
+        presence.start();
+        
+        try {
+            bus.start();
+        } catch (IOException e) {
+            System.err.println("❌ Cannot start cluster link: " + e.getMessage());
+            return;
+        }
+        
         System.out.println("🚀 Chat Server starting...");
-        System.out.println("📡 Port: " + PORT);
+        System.out.println("📡 Port: " + port);
+        System.out.println("⚙️ Mode: " + mode + (mode.equals("nio") ? " (" + reactorCount + " reactors)" : ""));
+        System.out.println("📦 Queue: " + queueCapacity + " frames per client, slow clients: " + slowPolicy);
+        System.out.println("🚦 Limits: " + (messageRate > 0 ? messageRate + " messages/s" : "no message limit") + ", "
+            + (byteRate > 0 ? byteRate / 1024 + " KB/s" : "no byte limit") + " per client and per user, frames up to "
+            + maxFrameSize / 1024 + " KB");
+        System.out.println("🖼️ Media store: " + Paths.get(mediaDir).toAbsolutePath());
+        System.out.println("📜 Message log: " + Paths.get(logDir).toAbsolutePath() + " (replaying " + historySize + " on join)");
+        System.out.println("🗒️ Event log: " + Paths.get(eventDir).toAbsolutePath()
+            + (consoleMessageRate > 0 ? " (showing up to " + consoleMessageRate + " messages/s)" : " (chat messages off)"));
+        if (clusterPort > 0) {
+            System.out.println("🕸️ Cluster: node " + nodeId + " on port " + clusterPort + ", peers " + peers);
+        }
+        if (metricsPort > 0) {
+            System.out.println("📈 Metrics: http://127.0.0.1:" + metricsPort + "/metrics (and JMX)");
+        }
         
         // Display all network IP addresses
         System.out.println("\n🌐 Server IP Addresses:");
@@ -54,120 +321,4543 @@ public class Server {
         System.out.println("ℹ️ Use these IP addresses for remote connections");
         System.out.println("⏳ Waiting for clients...\n");
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("0.0.0.0"))) {
+        if (mode.equals("nio")) {
+            runNonBlocking();
+        } else if (mode.equals("virtual")) {
+            runThreadPerClient(newVirtualThreadExecutor());
+        } else {
+            runThreadPerClient(task -> new Thread(task).start());
+        }
+    }
+    
+    /**
+     * Parse command line options
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--mode=")) {
+                mode = arg.substring("--mode=".length());
+            } else if (arg.startsWith("--reactors=")) {
+                reactorCount = Math.max(1, Integer.parseInt(arg.substring("--reactors=".length())));
+            } else if (arg.startsWith("--queue-size=")) {
+                queueCapacity = Math.max(1, Integer.parseInt(arg.substring("--queue-size=".length())));
+            } else if (arg.startsWith("--slow-policy=")) {
+                slowPolicy = arg.substring("--slow-policy=".length());
+            } else if (arg.startsWith("--media-dir=")) {
+                mediaDir = arg.substring("--media-dir=".length());
+            } else if (arg.startsWith("--log-dir=")) {
+                logDir = arg.substring("--log-dir=".length());
+            } else if (arg.startsWith("--history=")) {
+                historySize = Math.max(0, Integer.parseInt(arg.substring("--history=".length())));
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = arg.substring("--node-id=".length());
+            } else if (arg.startsWith("--cluster-port=")) {
+                clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--event-dir=")) {
+                eventDir = arg.substring("--event-dir=".length());
+            } else if (arg.startsWith("--log-messages=")) {
+                consoleMessageRate = Math.max(0, Integer.parseInt(arg.substring("--log-messages=".length())));
+            } else if (arg.startsWith("--max-messages=")) {
+                messageRate = Math.max(0, Integer.parseInt(arg.substring("--max-messages=".length())));
+            } else if (arg.startsWith("--max-bytes-kb=")) {
+                byteRate = Math.max(0, Integer.parseInt(arg.substring("--max-bytes-kb=".length()))) * 1024;
+            } else if (arg.startsWith("--max-frame-kb=")) {
+                int kb = Integer.parseInt(arg.substring("--max-frame-kb=".length()));
+                maxFrameSize = Math.max(1024, Math.min(MAX_FRAME_SIZE, kb * 1024));
+                maxLineLength = maxLineLength(maxFrameSize);
+            } else if (arg.startsWith("--peers=")) {
+                for (String peer : arg.substring("--peers=".length()).split(",")) {
+                    int colon = peer.lastIndexOf(':');
+                    peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                }
+            } else {
+                System.err.println("⚠️ Unknown option: " + arg);
+            }
+        }
+        
+        if (!mode.equals("threads") && !mode.equals("virtual") && !mode.equals("nio")) {
+            System.err.println("⚠️ Unknown mode '" + mode + "', using threads");
+            mode = "threads";
+        }
+        
+        if (!slowPolicy.equals("drop-oldest") && !slowPolicy.equals("drop-images") && !slowPolicy.equals("disconnect")) {
+            System.err.println("⚠️ Unknown slow policy '" + slowPolicy + "', using drop-images");
+            slowPolicy = "drop-images";
+        }
+        
+        if (clusterPort > 0) {
+            if (nodeId == null) {
+                nodeId = "node-" + clusterPort;
+            }
+            bus = new PeerMesh();
+        }
+    }
+    
+    /**
+     * Executor that starts a virtual thread per task
+     * Looked up by reflection so the server still compiles and runs on older JDKs
+     */
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("⚠️ Virtual threads need Java 21+, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    /**
+     * Blocking mode - a separate (platform or virtual) thread for every client
+     */
+    private static void runThreadPerClient(Executor executor) {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"))) {
             
             // Continuously accept client connections
             while (true) {
                 Socket socket = serverSocket.accept();
                 
-                // Create a handler thread for new client
-                ClientHandler clientHandler = new ClientHandler(socket);
-                clientHandlers.add(clientHandler);
+                // Create a handler for new client
+                ClientHandler clientHandler = new ClientHandler(socket, executor);
                 
-                // Start thread
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                // Start its thread (it joins the client list after the handshake)
+                executor.execute(clientHandler);
             }
             
         } catch (IOException e) {
-            System.err.println("❌ Server Error: " + e.getMessage());
+            events.error("❌ Server Error: " + e.getMessage());
             e.printStackTrace();
         }
     }
     
     /**
-     * ClientHandler class - Separate thread for each client
+     * Non-blocking mode - accepted channels are spread over a fixed pool of reactors
      */
-    private static class ClientHandler implements Runnable {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
-        
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-        }
-        
-        @Override
-        public void run() {
-            try {
-                // Setup input/output streams
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                
-                // Get username from client
-                username = in.readLine();
-                
-                System.out.println("✅ " + username + " has joined!");
+    private static void runNonBlocking() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port), NIO_BACKLOG);
+            
+            // Workers first: reactors hand them disk and image work
+            AtomicLong workerIndex = new AtomicLong();
+            workers = Executors.newFixedThreadPool(WORKER_COUNT, task -> {
+                Thread thread = new Thread(task, "worker-" + workerIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            
+            // Start one reactor per core
+            Reactor[] reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(i);
+                reactors[i].start();
+            }
+            
+            // Accept clients and hand them out round-robin
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
                 
-                // Notify everyone that a new user has joined
-                broadcastMessage("SERVER", username + " has joined the chat! 👋");
+                Reactor reactor = reactors[next];
+                next = (next + 1) % reactors.length;
                 
-                // Receive messages from client
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equals("/quit")) {
-                        break;
+                NioConnection connection = new NioConnection(channel, reactor);
+                reactor.register(connection);
+            }
+            
+        } catch (IOException e) {
+            events.error("❌ Server Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Longest text line: an IMAGE:<base64> line of the largest frame, plus the sender and time
+     */
+    private static int maxLineLength(int frameSize) {
+        return frameSize / 3 * 4 + 1024;
+    }
+    
+    /**
+     * Add a client to a room, creating the room on first use
+     */
+    private static Room enterRoom(String name, Connection client) {
+        Room entered = rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key);
+                bus.interest(key, true);
+            }
+            room.members.add(client);
+            return room;
+        });
+        entered.presence.online(client.username, true);
+        return entered;
+    }
+    
+    /**
+     * Remove a client from a room; an empty room (except the default one) is dropped
+     */
+    private static void exitRoom(Room room, Connection client) {
+        room.presence.online(client.username, false);
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.members.remove(client);
+            if (current.members.isEmpty() && !key.equals(DEFAULT_ROOM)) {
+                bus.interest(key, false);
+                return null;
+            }
+            return current;
+        });
+    }
+    
+    /**
+     * Called by the message bus: deliver a room message to this node's members
+     */
+    private static void deliver(String name, Frame frame) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            room.deliver(frame);
+        }
+    }
+    
+    /**
+     * Room name as typed ("#Dev" -> "dev"), or null when it is not a valid name
+     */
+    private static String roomName(String name) {
+        String normalized = name.startsWith("#") ? name.substring(1).toLowerCase() : name.toLowerCase();
+        return normalized.matches("[a-z0-9_-]{1,32}") ? normalized : null;
+    }
+    
+    /**
+     * User name cut to MAX_NAME_LENGTH characters (never in the middle of a surrogate pair)
+     */
+    private static String userName(String name) {
+        if (name.length() <= MAX_NAME_LENGTH) {
+            return name;
+        }
+        int end = Character.isHighSurrogate(name.charAt(MAX_NAME_LENGTH - 1)) ? MAX_NAME_LENGTH - 1 : MAX_NAME_LENGTH;
+        return name.substring(0, end);
+    }
+    
+    /**
+     * Room a message belongs to, from its sender ("alice #dev" -> "dev")
+     */
+    private static String roomOf(String sender) {
+        int tag = sender.lastIndexOf(" #");
+        return tag < 0 ? DEFAULT_ROOM : sender.substring(tag + 2);
+    }
+    
+    /**
+     * Print the busiest rooms of the last interval (messages per second)
+     */
+    private static void reportRooms() {
+        while (true) {
+            try {
+                Thread.sleep(ROOM_REPORT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            List<Room> busy = new ArrayList<>();
+            for (Room room : rooms.values()) {
+                if (room.sample() > 0) {
+                    busy.add(room);
+                }
+            }
+            if (busy.isEmpty()) {
+                continue;
+            }
+            
+            busy.sort((a, b) -> Long.compare(b.recentMessages, a.recentMessages));
+            StringBuilder report = new StringBuilder("🔥 Busiest rooms:");
+            for (Room room : busy.subList(0, Math.min(5, busy.size()))) {
+                report.append(String.format(" #%s %.1f msg/s (%d members, %d deliveries)",
+                    room.name, room.recentMessages * 1000.0 / ROOM_REPORT_INTERVAL_MS,
+                    room.members.size(), room.recentDeliveries));
+            }
+            events.info(report.toString());
+        }
+    }
+    
+    /**
+     * Send every room's presence changes of the last interval to its members
+     */
+    private static void publishPresence() {
+        long announced = 0;
+        while (true) {
+            try {
+                Thread.sleep(PRESENCE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            long now = System.currentTimeMillis();
+            boolean announce = now - announced >= ANNOUNCE_INTERVAL_MS;
+            if (announce) {
+                announced = now;
+            }
+            for (Room room : rooms.values()) {
+                try {
+                    if (announce) {
+                        room.announceArrivals();
                     }
-                    
-                    // Log message (show simplified version for images)
-                    if (message.startsWith("IMAGE:")) {
-                        System.out.println(username + ": [sent an image 📷]");
-                    } else if (message.startsWith("TEXT:")) {
-                        System.out.println(username + ": " + message.substring(5));
-                    } else {
-                        System.out.println(username + ": " + message);
+                    Frame changes = room.presence.publish(now);
+                    if (changes == null) {
+                        continue;
                     }
-                    
-                    // Broadcast message to everyone
-                    broadcastMessage(username, message);
+                    for (Connection member : room.members) {
+                        if (member.presence) {
+                            member.send(changes);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // One room's failure must not stop the thread or the other rooms
+                    events.error("⚠️ Presence error in #" + room.name + ": " + e);
                 }
-                
-            } catch (IOException e) {
-                System.err.println("❌ Client Handler Error: " + e.getMessage());
-            } finally {
-                // Cleanup when closing connection
-                closeConnection();
             }
         }
+    }
+    
+    /**
+     * Time shown next to the sender ("hh:mm a") - rendered once per minute, not per message
+     */
+    private static String timestamp(long millis) {
+        long minute = millis / 60000;
+        RenderedTime cached = renderedTime;
+        if (cached != null && cached.minute == minute) {
+            return cached.text;
+        }
+        
+        String text;
+        synchronized (TIME_FORMAT) {
+            text = TIME_FORMAT.format(new Date(millis));
+        }
+        
+        // Only move forward (old messages replayed from the log do not replace the current minute)
+        if (cached == null || minute > cached.minute) {
+            renderedTime = new RenderedTime(minute, text);
+        }
+        return text;
+    }
+    
+    /**
+     * RenderedTime class - The time string of one minute
+     */
+    private static class RenderedTime {
+        final long minute;
+        final String text;
+        
+        RenderedTime(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+    
+    /**
+     * MetricsMXBean interface - Server metrics as JMX attributes (chatapp:type=Server)
+     */
+    public interface MetricsMXBean {
+        int getConnectedClients();
+        
+        int getRooms();
+        
+        long getMessagesIn();
+        
+        long getMessagesOut();
+        
+        Map<String, Long> getBytesInByType();
+        
+        Map<String, Long> getBytesOutByType();
+        
+        long getFramesDropped();
+        
+        int getQueuedFrames();
+        
+        int getMaxQueueDepth();
+        
+        long getFanOuts();
+        
+        double getFanOutMeanMicros();
+        
+        double getFanOutP99Micros();
+        
+        double getCompressionRatio();
+        
+        double getDeflateMeanMicros();
+        
+        long getReadsThrottled();
+        
+        long getFloodDisconnects();
+        
+        long getOversizedFrames();
+        
+        long getConsoleLinesSkipped();
+        
+        long getEventsDropped();
+    }
+    
+    /**
+     * Metrics class - Counters for the hot paths (LongAdders: no shared lock, no contended
+     * cache line) and gauges read only when someone looks (JMX or the scrape endpoint)
+     */
+    static class Metrics implements MetricsMXBean {
+        // Label of every frame type (index = type)
+        private static final String[] TYPE_NAMES = {"unknown", "text", "image", "quit", "file_begin",
+            "file_chunk", "file_offset", "media_ref", "media_fetch", "media_data", "compress", "session", "checkpoint", "typing", "presence"};
+        
+        // Lines and frames received from clients, and frames handed to their sockets
+        private final LongAdder[] messagesIn = adders(TYPE_NAMES.length);
+        private final LongAdder[] bytesIn = adders(TYPE_NAMES.length);
+        private final LongAdder[] messagesOut = adders(TYPE_NAMES.length);
+        private final LongAdder[] bytesOut = adders(TYPE_NAMES.length);
+        
+        // Frames a full outbound queue dropped (slow-client policy)
+        final LongAdder dropped = new LongAdder();
+        
+        // Time to queue one room message for every local member
+        final Histogram fanOut = new Histogram();
+        
+        // Text frames deflated for compressing clients (bytes before and after, time) and inflated from them
+        private final LongAdder deflateIn = new LongAdder();
+        private final LongAdder deflateOut = new LongAdder();
+        final Histogram deflate = new Histogram();
+        final Histogram inflate = new Histogram();
+        
+        // Rate limits: reads paused, clients disconnected for flooding, lines and frames over the size limit
+        final LongAdder throttled = new LongAdder();
+        final LongAdder floodDisconnects = new LongAdder();
+        final LongAdder oversized = new LongAdder();
+        
+        private static LongAdder[] adders(int count) {
+            LongAdder[] adders = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+        
+        private static int index(int type) {
+            return type > 0 && type < TYPE_NAMES.length ? type : 0;
+        }
+        
+        void received(int type, int bytes) {
+            messagesIn[index(type)].increment();
+            bytesIn[index(type)].add(bytes);
+        }
+        
+        void sent(int type, int bytes) {
+            messagesOut[index(type)].increment();
+            bytesOut[index(type)].add(bytes);
+        }
         
         /**
-         * Method to send message to all clients
+         * One payload deflated (compressed is the same as original when it did not get smaller)
          */
-        private void broadcastMessage(String sender, String message) {
-            // Add current timestamp
-            String timestamp = new SimpleDateFormat("hh:mm a").format(new Date());
-            String formattedMessage = "[" + sender + " " + timestamp + "]: " + message;
-            
-            // Send to all connected clients
-            for (ClientHandler client : clientHandlers) {
-                if (client.out != null) {
-                    client.out.println(formattedMessage);
-                }
-            }
+        void deflated(int original, int compressed, long nanos) {
+            deflateIn.add(original);
+            deflateOut.add(compressed);
+            deflate.record(nanos);
         }
         
         /**
-         * Close connection and cleanup resources
+         * Register with the platform MBean server (shows up in jconsole / VisualVM)
          */
-        private void closeConnection() {
+        void register() {
             try {
-                // Remove from list
-                clientHandlers.remove(this);
-                
-                if (username != null) {
-                    System.out.println("❌ " + username + " has left the chat!");
-                    broadcastMessage("SERVER", username + " has left the chat! 👋");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, MetricsMXBean.class, true),
+                    new ObjectName("chatapp:type=Server" + (nodeId != null ? ",node=" + ObjectName.quote(nodeId) : "")));
+            } catch (Exception e) {
+                System.err.println("⚠️ Could not register JMX metrics: " + e.getMessage());
+            }
+        }
+        
+        /**
+         * Serve the metrics in the Prometheus text format on a local port
+         */
+        void serve(int port) throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+        }
+        
+        /**
+         * Every metric as text: "# TYPE name kind" followed by "name{labels} value" lines
+         */
+        String scrape() {
+            StringBuilder out = new StringBuilder(4096);
+            gauge(out, "chat_connected_clients", "Clients connected to this node", getConnectedClients());
+            gauge(out, "chat_rooms", "Rooms with members on this node", getRooms());
+            byType(out, "chat_messages_received_total", "Lines and frames received from clients", messagesIn);
+            byType(out, "chat_bytes_received_total", "Bytes received from clients", bytesIn);
+            byType(out, "chat_messages_sent_total", "Frames written to clients", messagesOut);
+            byType(out, "chat_bytes_sent_total", "Bytes written to clients", bytesOut);
+            counter(out, "chat_frames_dropped_total", "Frames dropped for slow clients", dropped.sum());
+            gauge(out, "chat_queued_frames", "Frames waiting in all outbound queues", getQueuedFrames());
+            gauge(out, "chat_queue_depth_max", "Longest outbound queue", getMaxQueueDepth());
+            fanOut.write(out, "chat_fanout_seconds", "Time to queue a room message for every member");
+            counter(out, "chat_deflate_input_bytes_total", "Text frame bytes before compression", deflateIn.sum());
+            counter(out, "chat_deflate_output_bytes_total", "Text frame bytes after compression", deflateOut.sum());
+            deflate.write(out, "chat_deflate_seconds", "Time to compress one text frame (once per message)");
+            inflate.write(out, "chat_inflate_seconds", "Time to decompress one frame from a client");
+            counter(out, "chat_reads_throttled_total", "Times a client's reads were paused by its rate limits", throttled.sum());
+            counter(out, "chat_flood_disconnects_total", "Clients disconnected for staying over their rate limits",
+                floodDisconnects.sum());
+            counter(out, "chat_oversized_frames_total", "Lines and frames over the size limit (client disconnected)",
+                oversized.sum());
+            counter(out, "chat_console_lines_skipped_total", "Chat messages not echoed to the console (rate limit)",
+                getConsoleLinesSkipped());
+            counter(out, "chat_events_dropped_total", "Events dropped because the event log was full", getEventsDropped());
+            return out.toString();
+        }
+        
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        
+        private static void byType(StringBuilder out, String name, String help, LongAdder[] adders) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            for (int i = 0; i < adders.length; i++) {
+                long value = adders[i].sum();
+                if (value > 0) {
+                    out.append(name).append("{type=\"").append(TYPE_NAMES[i]).append("\"} ").append(value).append('\n');
+                }
+            }
+        }
+        
+        private static long sum(LongAdder[] adders) {
+            long total = 0;
+            for (LongAdder adder : adders) {
+                total += adder.sum();
+            }
+            return total;
+        }
+        
+        private static Map<String, Long> byType(LongAdder[] adders) {
+            Map<String, Long> values = new TreeMap<>();
+            for (int i = 0; i < adders.length; i++) {
+                long value = adders[i].sum();
+                if (value > 0) {
+                    values.put(TYPE_NAMES[i], value);
                 }
-                
-                // Close resources
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null) socket.close();
-                
-            } catch (IOException e) {
-                System.err.println("❌ Close Error: " + e.getMessage());
             }
+            return values;
+        }
+        
+        @Override
+        public int getConnectedClients() {
+            return clientHandlers.size();
+        }
+        
+        @Override
+        public int getRooms() {
+            return rooms.size();
+        }
+        
+        @Override
+        public long getMessagesIn() {
+            return sum(messagesIn);
+        }
+        
+        @Override
+        public long getMessagesOut() {
+            return sum(messagesOut);
+        }
+        
+        @Override
+        public Map<String, Long> getBytesInByType() {
+            return byType(bytesIn);
+        }
+        
+        @Override
+        public Map<String, Long> getBytesOutByType() {
+            return byType(bytesOut);
+        }
+        
+        @Override
+        public long getFramesDropped() {
+            return dropped.sum();
+        }
+        
+        @Override
+        public int getQueuedFrames() {
+            int queued = 0;
+            for (Connection connection : clientHandlers.values()) {
+                queued += connection.outbound.size();
+            }
+            return queued;
+        }
+        
+        @Override
+        public int getMaxQueueDepth() {
+            int max = 0;
+            for (Connection connection : clientHandlers.values()) {
+                max = Math.max(max, connection.outbound.size());
+            }
+            return max;
+        }
+        
+        @Override
+        public long getFanOuts() {
+            return fanOut.count();
+        }
+        
+        @Override
+        public double getFanOutMeanMicros() {
+            long count = fanOut.count();
+            return count == 0 ? 0 : fanOut.sumNanos() / 1000.0 / count;
+        }
+        
+        @Override
+        public double getFanOutP99Micros() {
+            return fanOut.percentileNanos(0.99) / 1000.0;
+        }
+        
+        @Override
+        public double getCompressionRatio() {
+            long original = deflateIn.sum();
+            return original == 0 ? 1 : (double) deflateOut.sum() / original;
+        }
+        
+        @Override
+        public double getDeflateMeanMicros() {
+            long count = deflate.count();
+            return count == 0 ? 0 : deflate.sumNanos() / 1000.0 / count;
+        }
+        
+        @Override
+        public long getReadsThrottled() {
+            return throttled.sum();
+        }
+        
+        @Override
+        public long getFloodDisconnects() {
+            return floodDisconnects.sum();
+        }
+        
+        @Override
+        public long getOversizedFrames() {
+            return oversized.sum();
+        }
+        
+        @Override
+        public long getConsoleLinesSkipped() {
+            return events.skipped.sum();
+        }
+        
+        @Override
+        public long getEventsDropped() {
+            return events.dropped.sum();
+        }
+    }
+    
+    /**
+     * Histogram class - Durations counted in fixed buckets (cumulative when scraped)
+     */
+    static class Histogram {
+        // Bucket upper bounds: 10 µs .. 1 s, plus one bucket for anything slower
+        private static final long[] BOUNDS_NANOS = {10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000,
+            250_000_000, 500_000_000, 1_000_000_000};
+        
+        private final LongAdder[] buckets = Metrics.adders(BOUNDS_NANOS.length + 1);
+        private final LongAdder sum = new LongAdder();
+        
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(nanos);
+        }
+        
+        long count() {
+            return Metrics.sum(buckets);
+        }
+        
+        long sumNanos() {
+            return sum.sum();
+        }
+        
+        /**
+         * Upper bound of the bucket holding the given fraction of samples
+         */
+        long percentileNanos(double fraction) {
+            long target = (long) Math.ceil(fraction * count());
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target) {
+                    return target == 0 ? 0 : BOUNDS_NANOS[i];
+                }
+            }
+            return BOUNDS_NANOS[BOUNDS_NANOS.length - 1];
+        }
+        
+        void write(StringBuilder out, String name, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < BOUNDS_NANOS.length ? new java.math.BigDecimal(BOUNDS_NANOS[i]).movePointLeft(9).stripTrailingZeros().toPlainString() : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+    
+    /**
+     * EventLog class - Server events (joins, leaves, errors, chat messages) written by a
+     * background thread, so connection threads never wait for System.out or a file
+     *
+     * Events go into a fixed ring buffer; when it is full they are counted and dropped.
+     * The log thread takes them in batches, appends each batch to events/server.log with
+     * one write (rotated at EVENT_FILE_SIZE, keeping EVENT_FILES files) and echoes it to
+     * the console, chat messages at most consoleMessageRate per second.
+     */
+    static class EventLog implements Runnable {
+        private static final int CAPACITY = 8192;
+        private static final int BATCH = 512;
+        private static final long EVENT_FILE_SIZE = 10L * 1024 * 1024;
+        private static final int EVENT_FILES = 5;
+        private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        
+        // Chat message text kept per event (an IMAGE: line is mostly Base64)
+        private static final int MAX_MESSAGE_CHARS = 256;
+        
+        private static final char INFO = 'I';
+        private static final char ERROR = 'E';
+        private static final char MESSAGE = 'M';
+        
+        // Slots claimed by producers and taken by the log thread (a slot is null until published)
+        private final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+        private final AtomicLong claimed = new AtomicLong();
+        private volatile long taken;
+        
+        final LongAdder dropped = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        
+        // Log thread only
+        private Path dir;
+        private int messageRate;
+        private FileChannel file;
+        private long fileSize;
+        private long echoSecond;
+        private int echoed;
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        
+        /**
+         * Start writing to the directory (events logged before this wait in the ring)
+         */
+        void start(Path dir, int messageRate) throws IOException {
+            this.dir = dir;
+            this.messageRate = messageRate;
+            Files.createDirectories(dir);
+            openFile();
+            
+            Thread thread = new Thread(this, "event-log");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        void info(String text) {
+            offer(new Event(INFO, null, text));
+        }
+        
+        void error(String text) {
+            offer(new Event(ERROR, null, text));
+        }
+        
+        /**
+         * A chat message, raw as received; formatting is left to the log thread
+         */
+        void message(String user, String text) {
+            if (messageRate == 0) {
+                return;
+            }
+            offer(new Event(MESSAGE, user, text.length() > MAX_MESSAGE_CHARS ? text.substring(0, MAX_MESSAGE_CHARS) : text));
+        }
+        
+        private void offer(Event event) {
+            while (true) {
+                long slot = claimed.get();
+                if (slot - taken >= CAPACITY) {
+                    dropped.increment();
+                    return;
+                }
+                if (claimed.compareAndSet(slot, slot + 1)) {
+                    ring.lazySet((int) (slot % CAPACITY), event);
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Move up to max published events into the batch and free their slots
+         */
+        private int drain(List<Event> batch, int max) {
+            long next = taken;
+            while (batch.size() < max) {
+                int index = (int) (next % CAPACITY);
+                Event event = ring.get(index);
+                if (event == null) {
+                    break;
+                }
+                ring.lazySet(index, null);
+                batch.add(event);
+                next++;
+            }
+            taken = next;
+            return batch.size();
+        }
+        
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<>(BATCH);
+            StringBuilder lines = new StringBuilder();
+            StringBuilder out = new StringBuilder();
+            StringBuilder err = new StringBuilder();
+            long reportedDrops = 0;
+            long reportedSkips = 0;
+            long reportedAt = 0;
+            
+            while (true) {
+                if (drain(batch, BATCH) == 0) {
+                    // Say what was left out, at most once a second
+                    long now = System.currentTimeMillis();
+                    if (now - reportedAt >= 1000 && (dropped.sum() > reportedDrops || skipped.sum() > reportedSkips)) {
+                        if (dropped.sum() > reportedDrops) {
+                            err.append("⚠️ Event log full, ").append(dropped.sum() - reportedDrops).append(" event(s) dropped\n");
+                            reportedDrops = dropped.sum();
+                        }
+                        if (skipped.sum() > reportedSkips) {
+                            out.append("🔇 ").append(skipped.sum() - reportedSkips).append(" more message(s) not shown\n");
+                            reportedSkips = skipped.sum();
+                        }
+                        reportedAt = now;
+                        print(out, err);
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                
+                for (Event event : batch) {
+                    String text = event.kind == MESSAGE ? event.user + ": " + display(event.text) : event.text;
+                    lines.append(format.format(new Date(event.millis))).append(' ').append(event.kind).append(' ')
+                        .append(text).append('\n');
+                    
+                    if (event.kind == ERROR) {
+                        err.append(text).append('\n');
+                    } else if (event.kind == INFO || echo(event.millis)) {
+                        out.append(text).append('\n');
+                    }
+                }
+                batch.clear();
+                
+                write(lines);
+                print(out, err);
+            }
+        }
+        
+        /**
+         * Text protocol lines carry their kind: show images as a note, text without its prefix
+         */
+        private static String display(String text) {
+            if (text.startsWith("IMAGE:")) {
+                return "[sent an image 📷]";
+            }
+            return text.startsWith("TEXT:") ? text.substring(5) : text;
+        }
+        
+        /**
+         * Whether a chat message still fits in this second's console echo
+         */
+        private boolean echo(long millis) {
+            long second = millis / 1000;
+            if (second != echoSecond) {
+                echoSecond = second;
+                echoed = 0;
+            }
+            if (echoed < messageRate) {
+                echoed++;
+                return true;
+            }
+            skipped.increment();
+            return false;
+        }
+        
+        private void print(StringBuilder out, StringBuilder err) {
+            if (out.length() > 0) {
+                System.out.print(out);
+                out.setLength(0);
+            }
+            if (err.length() > 0) {
+                System.err.print(err);
+                err.setLength(0);
+            }
+        }
+        
+        private void write(StringBuilder lines) {
+            ByteBuffer data = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            lines.setLength(0);
+            try {
+                if (fileSize + data.remaining() > EVENT_FILE_SIZE) {
+                    rotate();
+                }
+                while (data.hasRemaining()) {
+                    fileSize += file.write(data);
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Event log error: " + e.getMessage());
+            }
+        }
+        
+        private void openFile() throws IOException {
+            file = FileChannel.open(dir.resolve("server.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = file.size();
+        }
+        
+        /**
+         * server.log becomes server.1.log, server.1.log becomes server.2.log, ... (oldest deleted)
+         */
+        private void rotate() throws IOException {
+            file.close();
+            Files.deleteIfExists(dir.resolve("server." + (EVENT_FILES - 1) + ".log"));
+            for (int i = EVENT_FILES - 2; i >= 1; i--) {
+                Path older = dir.resolve("server." + i + ".log");
+                if (Files.exists(older)) {
+                    Files.move(older, dir.resolve("server." + (i + 1) + ".log"), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(dir.resolve("server.log"), dir.resolve("server.1.log"), StandardCopyOption.REPLACE_EXISTING);
+            openFile();
+        }
+        
+        /**
+         * Event class - One log entry
+         */
+        private static class Event {
+            final long millis = System.currentTimeMillis();
+            final char kind;
+            final String user;
+            final String text;
+            
+            Event(char kind, String user, String text) {
+                this.kind = kind;
+                this.user = user;
+                this.text = text;
+            }
+        }
+    }
+    
+    /**
+     * Decode a text line, accepting both \n and \r\n line endings
+     */
+    static String decodeLine(byte[] data, int offset, int length) {
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(data, offset, length, CHARSET);
+    }
+    
+    /**
+     * Frame class - One outgoing message, encoded once per wire format and shared by every recipient
+     */
+    static class Frame {
+        final boolean media;
+        
+        // Not sent to text-protocol clients (file chunks, transfer replies)
+        final boolean binaryOnly;
+        
+        // Message parts (a control frame only has a line)
+        private final String sender;
+        private final long millis;
+        private final int type;
+        private final String text;
+        private final byte[] payload;
+        
+        // Full image behind a media reference, for text-protocol clients
+        private final byte[] image;
+        
+        // Position in the message log (0 for frames that are not logged)
+        long seq;
+        
+        // Encodings, created on first use (a race may encode twice, never wrongly)
+        private volatile Encoded textEncoding;
+        private volatile Encoded binaryEncoding;
+        private volatile Encoded deflateEncoding;
+        
+        /**
+         * Message received as a text line (TEXT:..., IMAGE:<base64> or legacy plain text)
+         */
+        Frame(String sender, long millis, String message) {
+            this.sender = sender;
+            this.millis = millis;
+            this.media = message.startsWith("IMAGE:");
+            this.binaryOnly = false;
+            this.type = media ? TYPE_IMAGE : TYPE_TEXT;
+            this.text = message;
+            this.payload = null;
+            this.image = null;
+        }
+        
+        /**
+         * Message received as a binary frame (UTF-8 text, raw image bytes, file parts)
+         */
+        Frame(String sender, long millis, int type, byte[] payload) {
+            this(sender, millis, type, payload, null);
+        }
+        
+        /**
+         * Binary frame with the message text-protocol clients get instead (null for none)
+         */
+        Frame(String sender, long millis, int type, byte[] payload, String text) {
+            this(sender, millis, type, payload, text, null);
+        }
+        
+        private Frame(String sender, long millis, int type, byte[] payload, String text, byte[] image) {
+            this.sender = sender;
+            this.millis = millis;
+            this.media = type == TYPE_IMAGE || type == TYPE_FILE_CHUNK || type == TYPE_MEDIA_REF;
+            this.binaryOnly = text == null && image == null && type != TYPE_TEXT && type != TYPE_IMAGE;
+            this.type = type;
+            this.text = text;
+            this.payload = payload;
+            this.image = image;
+        }
+        
+        /**
+         * Shared image: binary clients get the media reference (hash, size, thumbnail),
+         * text clients the full IMAGE:<base64> line (the original line when there is one)
+         */
+        static Frame image(String sender, long millis, byte[] reference, byte[] image, String text) {
+            return new Frame(sender, millis, TYPE_MEDIA_REF, reference, text, image);
+        }
+        
+        /**
+         * Binary frame written in the binary encoding in every binary format (a reply queued
+         * just before the connection's format changes)
+         */
+        static Frame plain(String sender, long millis, int type, byte[] payload) {
+            Frame frame = new Frame(sender, millis, type, payload);
+            frame.deflateEncoding = frame.encoding(BINARY_FORMAT);
+            return frame;
+        }
+        
+        /**
+         * Line sent as is whatever the protocol (handshake replies)
+         */
+        static Frame control(String line) {
+            Frame frame = new Frame(null, 0, line);
+            frame.textEncoding = new Encoded((line + "\n").getBytes(CHARSET));
+            frame.binaryEncoding = frame.textEncoding;
+            frame.deflateEncoding = frame.textEncoding;
+            return frame;
+        }
+        
+        /**
+         * Frame read back from the message log (media references come without the full image)
+         */
+        static Frame decode(byte[] frame) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+            int type = data.read();
+            data.readInt();
+            String sender = data.readUTF();
+            long millis = data.readLong();
+            byte[] body = new byte[data.available()];
+            data.readFully(body);
+            
+            if (type == TYPE_MEDIA_REF) {
+                return image(sender, millis, body, null, null);
+            }
+            
+            // Server announcements reach text clients as plain lines
+            String text = type == TYPE_TEXT && (sender.equals("SERVER") || sender.startsWith("SERVER #")) ? new String(body, StandardCharsets.UTF_8) : null;
+            return new Frame(sender, millis, type, body, text);
+        }
+        
+        /**
+         * Frame as relayed between cluster nodes: binary encoding | text fallback | full image
+         */
+        void writeRelay(DataOutputStream out) throws IOException {
+            ByteBuffer encoded = buffer(BINARY_FORMAT);
+            byte[] data = new byte[encoded.remaining()];
+            encoded.get(data);
+            writeBytes(out, data);
+            
+            // A media reference rebuilds its text line from the image
+            writeBytes(out, text != null && image == null ? text.getBytes(StandardCharsets.UTF_8) : null);
+            writeBytes(out, image);
+        }
+        
+        static Frame readRelay(DataInputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
+            byte[] text = readBytes(in);
+            byte[] image = readBytes(in);
+            
+            int type = data.read();
+            data.readInt();
+            String sender = data.readUTF();
+            long millis = data.readLong();
+            byte[] body = new byte[data.available()];
+            data.readFully(body);
+            return new Frame(sender, millis, type, body,
+                text != null ? new String(text, StandardCharsets.UTF_8) : null, image);
+        }
+        
+        private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+            out.writeInt(data != null ? data.length : -1);
+            if (data != null) {
+                out.write(data);
+            }
+        }
+        
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
+        
+        /**
+         * Replies the client cannot do without (handshake, compression, session token):
+         * a full queue drops chat traffic instead
+         */
+        boolean essential() {
+            return sender == null || type == TYPE_COMPRESS || type == TYPE_SESSION;
+        }
+        
+        /**
+         * Chat messages go to the message log; control lines and file parts do not
+         */
+        boolean logged() {
+            return sender != null && (type == TYPE_TEXT || type == TYPE_IMAGE || type == TYPE_MEDIA_REF);
+        }
+        
+        private Encoded encoding(int format) {
+            if (format == TEXT_FORMAT) {
+                Encoded encoded = textEncoding;
+                if (encoded == null) {
+                    encoded = new Encoded(encodeText());
+                    textEncoding = encoded;
+                }
+                return encoded;
+            }
+            
+            Encoded encoded = binaryEncoding;
+            if (encoded == null) {
+                encoded = new Encoded(encodeBinary());
+                binaryEncoding = encoded;
+            }
+            if (format == DEFLATE_FORMAT) {
+                Encoded deflated = deflateEncoding;
+                if (deflated == null) {
+                    deflated = encodeDeflate(encoded);
+                    deflateEncoding = deflated;
+                }
+                return deflated;
+            }
+            return encoded;
+        }
+        
+        /**
+         * Text frames with a deflated payload (type has Compression.FLAG set); images, file
+         * parts and anything that does not get smaller keep the binary encoding
+         */
+        private Encoded encodeDeflate(Encoded binary) {
+            ByteBuffer encoded = binary.data.duplicate();
+            int length = encoded.remaining() - 5;
+            if (type != TYPE_TEXT || length < Compression.MIN_LENGTH) {
+                return binary;
+            }
+            
+            // Payload after type and length (nio mode keeps only a direct buffer)
+            byte[] payload = new byte[length];
+            encoded.position(5);
+            encoded.get(payload);
+            byte[] compressed = Compression.deflate(payload, 0, length);
+            if (compressed == null) {
+                return binary;
+            }
+            
+            ByteBuffer frame = ByteBuffer.allocate(5 + compressed.length);
+            frame.put((byte) (type | Compression.FLAG)).putInt(compressed.length).put(compressed);
+            return new Encoded(frame.array());
+        }
+        
+        /**
+         * [sender time]: TEXT:... / IMAGE:<base64>
+         */
+        private byte[] encodeText() {
+            String message = text;
+            if (message == null) {
+                if (image != null) {
+                    message = "IMAGE:" + Base64.getEncoder().encodeToString(image);
+                } else if (type == TYPE_IMAGE) {
+                    message = "IMAGE:" + Base64.getEncoder().encodeToString(payload);
+                } else {
+                    message = "TEXT:" + new String(payload, StandardCharsets.UTF_8);
+                }
+            }
+            return ("[" + sender + " " + timestamp(millis) + "]: " + message + "\n").getBytes(CHARSET);
+        }
+        
+        /**
+         * type | length | sender (UTF) | time (epoch millis, 8) | body
+         */
+        private byte[] encodeBinary() {
+            byte[] body = payload;
+            if (body == null) {
+                if (text.startsWith("IMAGE:")) {
+                    body = decodeBase64(text.substring(6));
+                } else if (text.startsWith("TEXT:")) {
+                    body = text.substring(5).getBytes(StandardCharsets.UTF_8);
+                } else {
+                    body = text.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            
+            try {
+                ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+                DataOutputStream data = new DataOutputStream(header);
+                data.writeUTF(sender);
+                data.writeLong(millis);
+                
+                ByteBuffer frame = ByteBuffer.allocate(5 + header.size() + body.length);
+                frame.put((byte) type).putInt(header.size() + body.length);
+                frame.put(header.toByteArray()).put(body);
+                return frame.array();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        static byte[] decodeBase64(String base64) {
+            try {
+                return Base64.getDecoder().decode(base64);
+            } catch (IllegalArgumentException e) {
+                // Receivers show a broken image
+                return new byte[0];
+            }
+        }
+        
+        int length(int format) {
+            return encoding(format).data.remaining();
+        }
+        
+        /**
+         * View of the shared bytes with its own position (no copy)
+         */
+        ByteBuffer buffer(int format) {
+            return encoding(format).data.duplicate();
+        }
+        
+        void writeTo(OutputStream out, int format) throws IOException {
+            out.write(encoding(format).bytes);
+        }
+        
+        void copyTo(byte[] buffer, int offset, int format) {
+            byte[] bytes = encoding(format).bytes;
+            System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        }
+    }
+    
+    /**
+     * Compression class - Raw deflate with a preset dictionary of common chat words
+     * Every message is compressed on its own (no stream context per connection), so a
+     * broadcast is compressed once and the same bytes go to every recipient; the
+     * dictionary makes up for the missing history on short messages.
+     * Deflaters and inflaters hold native memory, so they are pooled and reused
+     */
+    static class Compression {
+        // Method a client asks for (TYPE_COMPRESS), and the type bit of a deflated frame
+        static final String METHOD = "deflate";
+        static final int FLAG = 0x80;
+        
+        // Shorter payloads are sent as they are
+        static final int MIN_LENGTH = 32;
+        
+        // Same bytes in Client (most common strings last: they get the shortest distances)
+        private static final byte[] DICTIONARY = (
+            "https://www. .com/ .org/ lol haha 😂 ❤️ 👍 🙂 😅 🎉 okay ok sure thanks thank you! sorry "
+            + "please yes no maybe what why how when where who which did does doing done don't can't "
+            + "won't I'm it's that's there's let's you're we're they're I think I know I'll I've do "
+            + "you have you are you is it going good great nice cool awesome right now today tomorrow "
+            + "yesterday tonight morning afternoon meeting later soon time work lunch coffee home "
+            + "again just really also still already about from with this that then than there their "
+            + "they have been would could should will was were what's going on here everyone guys "
+            + "hello hi hey bye see you 📢 SERVER left the chat joined the chat! 👋 joined # the and for "
+            + "not but all any some more one two new get got make know like want need look good day ").getBytes(StandardCharsets.UTF_8);
+        
+        private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+        
+        /**
+         * Deflated bytes, or null when they would not be smaller
+         */
+        static byte[] deflate(byte[] data, int offset, int length) {
+            long start = System.nanoTime();
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            try {
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                
+                // Anything that does not fit in the original size is not worth sending
+                byte[] output = new byte[length];
+                int size = 0;
+                while (!deflater.finished() && size < output.length) {
+                    size += deflater.deflate(output, size, output.length - size);
+                }
+                boolean smaller = deflater.finished() && size < length;
+                metrics.deflated(length, smaller ? size : length, System.nanoTime() - start);
+                return smaller ? Arrays.copyOf(output, size) : null;
+            } finally {
+                deflater.reset();
+                deflaters.offer(deflater);
+            }
+        }
+        
+        /**
+         * Original bytes of a deflated payload (at most maxLength of them)
+         */
+        static byte[] inflate(byte[] data, int maxLength) throws IOException {
+            long start = System.nanoTime();
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                inflater.setDictionary(DICTIONARY);
+                inflater.setInput(data);
+                
+                // Sized for a typical ratio, but never more up front than a small frame needs:
+                // the limit is only reached by bytes that really come out
+                ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(data.length * 3, 64 * 1024));
+                byte[] chunk = new byte[8192];
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(chunk);
+                    if (count == 0 && inflater.needsInput()) {
+                        throw new IOException("Truncated compressed frame");
+                    }
+                    if (output.size() + count > maxLength) {
+                        throw new IOException("Compressed frame too large");
+                    }
+                    output.write(chunk, 0, count);
+                }
+                metrics.inflate.record(System.nanoTime() - start);
+                return output.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed frame: " + e.getMessage());
+            } finally {
+                inflater.reset();
+                inflaters.offer(inflater);
+            }
+        }
+    }
+    
+    /**
+     * MediaStore class - Shared images kept once on disk, named by the SHA-256 of their bytes
+     * Re-shared images are not stored again; clients get a thumbnail and fetch the full
+     * bytes (memory-mapped from the file) only when they open the image
+     */
+    private static class MediaStore {
+        // Longest side of the thumbnail sent with every media reference
+        private static final int THUMBNAIL_SIZE = 160;
+        
+        // Mapped files kept open for repeated fetches (cleared when full)
+        private static final int MAX_MAPPED = 256;
+        
+        private final Path root;
+        private final Map<String, ByteBuffer> mapped = new ConcurrentHashMap<>();
+        
+        MediaStore(Path root) {
+            this.root = root;
+        }
+        
+        /**
+         * Store an image (first time only) and return its reference: hash (32) | size (8) | thumbnail
+         */
+        byte[] store(byte[] image) throws IOException {
+            byte[] hash = sha256(image);
+            Path file = path(hash, "");
+            Path thumbnailFile = path(hash, ".thumb");
+            
+            // Thumbnail first, so an existing image always has one
+            if (!Files.exists(file)) {
+                write(thumbnailFile, thumbnail(image));
+                write(file, image);
+            }
+            
+            byte[] thumbnail = Files.readAllBytes(thumbnailFile);
+            return ByteBuffer.allocate(40 + thumbnail.length)
+                .put(hash).putLong(image.length).put(thumbnail).array();
+        }
+        
+        /**
+         * Full image bytes for a hash, or null when the store does not have it
+         */
+        ByteBuffer get(byte[] hash) throws IOException {
+            String key = hex(hash);
+            ByteBuffer buffer = mapped.get(key);
+            if (buffer == null) {
+                Path file = path(hash, "");
+                if (!Files.exists(file)) {
+                    return null;
+                }
+                
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                if (mapped.size() >= MAX_MAPPED) {
+                    mapped.clear();
+                }
+                mapped.put(key, buffer);
+            }
+            return buffer.duplicate();
+        }
+        
+        private Path path(byte[] hash, String suffix) {
+            String name = hex(hash);
+            return root.resolve(name.substring(0, 2)).resolve(name + suffix);
+        }
+        
+        /**
+         * Write through a temporary file so readers never see half a file
+         */
+        private static void write(Path file, byte[] data) throws IOException {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), "upload", ".tmp");
+            try {
+                Files.write(temp, data);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        
+        /**
+         * Small JPEG preview (empty when the bytes are not an image Java can read)
+         */
+        private static byte[] thumbnail(byte[] image) throws IOException {
+            BufferedImage original = ImageIO.read(new ByteArrayInputStream(image));
+            if (original == null) {
+                return new byte[0];
+            }
+            
+            double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(original.getWidth(), original.getHeight()));
+            int width = Math.max(1, (int) (original.getWidth() * scale));
+            int height = Math.max(1, (int) (original.getHeight() * scale));
+            
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = thumbnail.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(original, 0, 0, width, height, null);
+            g.dispose();
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, "jpg", out);
+            return out.toByteArray();
+        }
+        
+        private static byte[] sha256(byte[] data) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        private static String hex(byte[] data) {
+            StringBuilder sb = new StringBuilder(data.length * 2);
+            for (byte b : data) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * MessageLog class - Append-only chat history on disk, in segments of LOG_SEGMENT_SIZE
+     * Broadcasts only hand records to the log thread, which writes them in batches and
+     * fsyncs every LOG_SYNC_INTERVAL_MS; recent records are also kept in memory so a
+     * joining client's replay usually needs no disk read
+     *
+     * Record: length (4) | seq (8) | epoch millis (8) | frame in binary encoding
+     */
+    static class MessageLog implements Runnable {
+        private static final long LOG_SEGMENT_SIZE = 64L * 1024 * 1024;
+        private static final long LOG_SYNC_INTERVAL_MS = 100;
+        private static final int RECORD_HEADER = 20;
+        
+        // Every INDEX_INTERVAL-th record of a segment is in the offset index
+        private static final int INDEX_INTERVAL = 64;
+        
+        // Records kept in memory (most joins replay only from here)
+        private static final int RECENT_RECORDS = 1024;
+        
+        // Records written per gathering write
+        private static final int WRITE_BATCH = 64;
+        
+        // Records looked at per step of a paged read
+        private static final int READ_WINDOW = 1024;
+        
+        private final Path dir;
+        
+        // A new segment is started once the last one reaches this size
+        private final long segmentSize;
+        
+        // Random id of this log (kept in log.id): seqs from a resume token only mean something here
+        final String id;
+        
+        // Guarded by this: sequence numbers, recent records, segments and their index
+        private long nextSeq = 1;
+        private final ArrayDeque<Record> recent = new ArrayDeque<>();
+        private final List<Segment> segments = new ArrayList<>();
+        
+        // Held while a logged frame is numbered and queued to its room's members, apart from
+        // the lock on this: the log thread and history readers never wait behind a fan-out
+        final Object delivery = new Object();
+        
+        // Handed from broadcasting threads to the log thread
+        private final LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+        
+        // Last seq the log thread is done with: completely written to a segment file, or lost
+        // to a failed write (changes are notified on this)
+        volatile long writtenSeq;
+        
+        // Log thread only
+        private FileChannel output;
+        
+        MessageLog(Path dir) throws IOException {
+            this(dir, LOG_SEGMENT_SIZE);
+        }
+        
+        MessageLog(Path dir, long segmentSize) throws IOException {
+            this.dir = dir;
+            this.segmentSize = segmentSize;
+            Files.createDirectories(dir);
+            this.id = loadId(dir.resolve("log.id"));
+            recover();
+        }
+        
+        private static String loadId(Path file) throws IOException {
+            if (Files.exists(file)) {
+                return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            }
+            String id = UUID.randomUUID().toString().replace("-", "");
+            Files.write(file, id.getBytes(StandardCharsets.UTF_8));
+            return id;
+        }
+        
+        /**
+         * Give a frame the next sequence number and queue it for writing (no I/O here)
+         */
+        synchronized void append(Frame frame) {
+            Record record = new Record(nextSeq++, frame.millis, frame);
+            frame.seq = record.seq;
+            
+            recent.addLast(record);
+            if (recent.size() > RECENT_RECORDS) {
+                recent.removeFirst();
+            }
+            pending.add(record);
+        }
+        
+        /**
+         * Mark a connection's history point: everything up to it comes from the log,
+         * everything after it is delivered live (set while no logged frame is being numbered or queued)
+         */
+        long mark(Connection connection) {
+            synchronized (delivery) {
+                synchronized (this) {
+                    connection.historyEnd = nextSeq - 1;
+                    return connection.historyEnd;
+                }
+            }
+        }
+        
+        /**
+         * Frames with afterSeq < seq <= toSeq sent at or after sinceMillis, at most the last limit of them
+         * Frames read back from disk carry no full image for media references
+         */
+        List<Frame> history(long afterSeq, long sinceMillis, int limit, long toSeq) throws IOException {
+            List<Frame> frames = new ArrayList<>();
+            List<Frame> tail = new ArrayList<>();
+            long startSeq;
+            long diskEnd;
+            Segment segment;
+            long position;
+            
+            synchronized (this) {
+                toSeq = Math.min(toSeq, nextSeq - 1);
+                startSeq = Math.max(Math.max(afterSeq + 1, toSeq - limit + 1), seqBefore(sinceMillis));
+                
+                // Records that left recent before the log thread wrote them are in neither place:
+                // wait until it has (it is at most a queue of writes behind)
+                while (startSeq <= toSeq && writtenSeq < Math.min(toSeq, oldestRecent() - 1)) {
+                    try {
+                        wait(LOG_SYNC_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the message log");
+                    }
+                }
+                
+                for (Record record : recent) {
+                    if (record.seq >= startSeq && record.seq <= toSeq && record.millis >= sinceMillis) {
+                        tail.add(record.frame);
+                    }
+                }
+                
+                diskEnd = Math.min(Math.min(oldestRecent() - 1, toSeq), writtenSeq);
+                if (startSeq > diskEnd || segments.isEmpty()) {
+                    return tail;
+                }
+                
+                // Closest indexed record at or before startSeq
+                int index = segments.size() - 1;
+                while (index > 0 && segments.get(index).baseSeq > startSeq) {
+                    index--;
+                }
+                segment = segments.get(index);
+                position = segment.positionBefore(startSeq);
+            }
+            
+            while (segment != null) {
+                if (readSegment(segment, position, startSeq, diskEnd, sinceMillis, frames)) {
+                    break;
+                }
+                segment = next(segment);
+                position = 0;
+            }
+            
+            frames.addAll(tail);
+            return frames;
+        }
+        
+        /**
+         * Up to limit frames that pass the filter, oldest first from afterSeq + 1 on (at most up to
+         * toSeq), for reading a long stretch in pages; returns the seq the next page starts after
+         * (afterSeq itself while the log thread has not yet written the records that follow)
+         */
+        long read(long afterSeq, long toSeq, int limit, Predicate<Frame> filter, List<Frame> frames) throws IOException {
+            long readable;
+            synchronized (this) {
+                // Records already out of recent but not written yet cannot be read until they are
+                readable = Math.min(toSeq, writtenSeq >= oldestRecent() - 1 ? nextSeq - 1 : writtenSeq);
+            }
+            
+            long seq = afterSeq;
+            int added = 0;
+            while (seq < readable) {
+                long windowEnd = Math.min(readable, seq + READ_WINDOW);
+                for (Frame frame : history(seq, 0, READ_WINDOW, windowEnd)) {
+                    if (filter.test(frame)) {
+                        frames.add(frame);
+                        if (++added == limit) {
+                            return frame.seq;
+                        }
+                    }
+                }
+                seq = windowEnd;
+            }
+            return seq;
+        }
+        
+        /**
+         * Read records of one segment into frames; true once a record after endSeq was seen
+         * Only bytes up to the segment's published size are read: the log thread may be
+         * writing the record after them
+         */
+        private boolean readSegment(Segment segment, long position, long startSeq, long endSeq,
+                                    long sinceMillis, List<Frame> frames) throws IOException {
+            long size = segment.size;
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                channel.position(position);
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER_SIZE));
+                while (position + RECORD_HEADER <= size) {
+                    int length = in.readInt();
+                    long seq = in.readLong();
+                    long millis = in.readLong();
+                    if (seq > endSeq) {
+                        return true;
+                    }
+                    if (length < 0 || position + RECORD_HEADER + length > size) {
+                        throw new IOException("broken record " + seq + " in " + segment.path.getFileName());
+                    }
+                    position += RECORD_HEADER + length;
+                    
+                    if (seq < startSeq || millis < sinceMillis) {
+                        in.skipBytes(length);
+                    } else {
+                        byte[] frame = new byte[length];
+                        in.readFully(frame);
+                        Frame decoded = Frame.decode(frame);
+                        decoded.seq = seq;
+                        frames.add(decoded);
+                    }
+                }
+                return false;
+            }
+        }
+        
+        /**
+         * Seq of the oldest record in memory (the next one when there is none)
+         */
+        private long oldestRecent() {
+            return recent.isEmpty() ? nextSeq : recent.peekFirst().seq;
+        }
+        
+        private synchronized Segment next(Segment segment) {
+            int index = segments.indexOf(segment);
+            return index + 1 < segments.size() ? segments.get(index + 1) : null;
+        }
+        
+        /**
+         * Seq of the last indexed record sent before sinceMillis (0 when there is none)
+         */
+        private long seqBefore(long sinceMillis) {
+            long seq = 0;
+            for (Segment segment : segments) {
+                for (int i = 0; i < segment.indexed; i++) {
+                    if (segment.millis[i] >= sinceMillis) {
+                        return seq;
+                    }
+                    seq = segment.seqs[i];
+                }
+            }
+            return seq;
+        }
+        
+        /**
+         * Log thread: write queued records in batches, fsync at most every LOG_SYNC_INTERVAL_MS
+         */
+        @Override
+        public void run() {
+            List<Record> batch = new ArrayList<>(WRITE_BATCH);
+            long lastSync = System.currentTimeMillis();
+            boolean dirty = false;
+            
+            while (true) {
+                try {
+                    Record first = pending.poll(LOG_SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        pending.drainTo(batch, WRITE_BATCH - 1);
+                        write(batch);
+                        batch.clear();
+                        dirty = true;
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    if (dirty && now - lastSync >= LOG_SYNC_INTERVAL_MS) {
+                        output.force(false);
+                        dirty = false;
+                        lastSync = now;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    events.error("❌ Message log error: " + e);
+                    batch.clear();
+                }
+            }
+        }
+        
+        /**
+         * Write one batch; its records are done with afterwards, written or (on an error) lost
+         */
+        private void write(List<Record> batch) throws IOException {
+            try {
+                append(batch);
+            } finally {
+                // Readers waiting for these records must not wait for ever
+                synchronized (this) {
+                    writtenSeq = Math.max(writtenSeq, batch.get(batch.size() - 1).seq);
+                    notifyAll();
+                }
+            }
+        }
+        
+        private void append(List<Record> batch) throws IOException {
+            Segment segment = active(batch.get(0).seq);
+            if (segment.size >= segmentSize) {
+                // Open the next file first: when that fails, the current one is still the one written
+                FileChannel next = FileChannel.open(segmentPath(batch.get(0).seq), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    output.force(false);
+                    output.close();
+                } catch (IOException e) {
+                    next.close();
+                    throw e;
+                }
+                output = next;
+                segment = addSegment(batch.get(0).seq);
+            }
+            
+            List<ByteBuffer> buffers = new ArrayList<>(batch.size() * 2);
+            List<Record> written = new ArrayList<>(batch.size());
+            long[] positions = new long[batch.size()];
+            long position = segment.size;
+            for (Record record : batch) {
+                ByteBuffer frame;
+                try {
+                    frame = record.frame.buffer(BINARY_FORMAT);
+                } catch (RuntimeException e) {
+                    // One frame that cannot be encoded is left out, not the rest of the batch
+                    events.error("❌ Message log: skipping seq " + record.seq + ": " + e);
+                    continue;
+                }
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+                header.putInt(frame.remaining()).putLong(record.seq).putLong(record.millis).flip();
+                buffers.add(header);
+                buffers.add(frame);
+                
+                positions[written.size()] = position;
+                written.add(record);
+                position += RECORD_HEADER + frame.remaining();
+            }
+            
+            ByteBuffer[] data = buffers.toArray(new ByteBuffer[0]);
+            long remaining = position - segment.size;
+            try {
+                while (remaining > 0) {
+                    remaining -= output.write(data);
+                }
+            } catch (IOException e) {
+                // Cut off what part of the batch got out, so the next batch follows a whole record
+                try {
+                    output.truncate(segment.size);
+                    output.position(segment.size);
+                } catch (IOException truncateError) {
+                    e.addSuppressed(truncateError);
+                }
+                throw e;
+            }
+            
+            // Only records that are in the file go into the index
+            synchronized (this) {
+                for (int i = 0; i < written.size(); i++) {
+                    segment.record(written.get(i).seq, written.get(i).millis, positions[i]);
+                }
+                segment.size = position;
+            }
+        }
+        
+        private synchronized Segment active(long firstSeq) throws IOException {
+            if (segments.isEmpty()) {
+                addSegment(firstSeq);
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            if (output == null) {
+                output = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                output.position(segment.size);
+            }
+            return segment;
+        }
+        
+        private synchronized Segment addSegment(long baseSeq) {
+            Segment segment = new Segment(baseSeq, segmentPath(baseSeq));
+            segments.add(segment);
+            return segment;
+        }
+        
+        private Path segmentPath(long baseSeq) {
+            return dir.resolve(String.format("%020d.log", baseSeq));
+        }
+        
+        /**
+         * Rebuild the index from the segment files, cutting off a record torn by a crash
+         */
+        private void recover() throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files);
+            
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - 4)), file);
+                segments.add(segment);
+                
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER_SIZE));
+                    long position = 0;
+                    try {
+                        while (true) {
+                            int length = in.readInt();
+                            long seq = in.readLong();
+                            long millis = in.readLong();
+                            if (length < 0 || in.skipBytes(length) < length) {
+                                break;
+                            }
+                            segment.record(seq, millis, position);
+                            position += RECORD_HEADER + length;
+                            nextSeq = seq + 1;
+                        }
+                    } catch (EOFException e) {
+                        // End of segment (or a partly written last record)
+                    }
+                    
+                    if (position < channel.size()) {
+                        events.error("⚠️ Message log: dropping torn record at the end of " + name);
+                        channel.truncate(position);
+                    }
+                    segment.size = position;
+                }
+            }
+            writtenSeq = nextSeq - 1;
+        }
+        
+        /**
+         * Record class - A message waiting to be written
+         */
+        private static class Record {
+            final long seq;
+            final long millis;
+            final Frame frame;
+            
+            Record(long seq, long millis, Frame frame) {
+                this.seq = seq;
+                this.millis = millis;
+                this.frame = frame;
+            }
+        }
+        
+        /**
+         * Segment class - One log file with a sparse offset index (seq, millis -> position)
+         */
+        private static class Segment {
+            final long baseSeq;
+            final Path path;
+            
+            // Bytes written (log thread), index entries guarded by the log
+            volatile long size;
+            long[] seqs = new long[16];
+            long[] millis = new long[16];
+            long[] positions = new long[16];
+            int indexed;
+            private int records;
+            
+            Segment(long baseSeq, Path path) {
+                this.baseSeq = baseSeq;
+                this.path = path;
+            }
+            
+            void record(long seq, long sentMillis, long position) {
+                if (records++ % INDEX_INTERVAL != 0) {
+                    return;
+                }
+                if (indexed == seqs.length) {
+                    seqs = Arrays.copyOf(seqs, indexed * 2);
+                    millis = Arrays.copyOf(millis, indexed * 2);
+                    positions = Arrays.copyOf(positions, indexed * 2);
+                }
+                seqs[indexed] = seq;
+                millis[indexed] = sentMillis;
+                positions[indexed] = position;
+                indexed++;
+            }
+            
+            long positionBefore(long seq) {
+                int index = Arrays.binarySearch(seqs, 0, indexed, seq);
+                if (index < 0) {
+                    index = -index - 2;
+                }
+                return index < 0 ? 0 : positions[index];
+            }
+        }
+    }
+    
+    /**
+     * Room class - A named channel; a message costs work only for the room's members
+     */
+    static class Room {
+        final String name;
+        final Set<Connection> members = ConcurrentHashMap.newKeySet();
+        
+        // Throughput: chat messages sent here and frames queued for members
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong deliveries = new AtomicLong();
+        
+        // Counts of the last report interval (room-stats thread only)
+        long recentMessages;
+        long recentDeliveries;
+        private long reportedMessages;
+        private long reportedDeliveries;
+        
+        // Online and typing users, published to members as coalesced diffs
+        final Presence presence;
+        
+        // Users who joined or left since the last announcement, by what they did ("joined #dev 👋"),
+        // in order (guarded by arrivals): announced together, so a crowd joining costs one
+        // announcement per interval instead of one per user, each to every member
+        private final Map<String, List<String>> arrivals = new LinkedHashMap<>();
+        
+        Room(String name) {
+            this.name = name;
+            this.presence = new Presence(sender("SERVER"));
+        }
+        
+        /**
+         * Sender shown to members - tagged with the room outside the default one
+         */
+        String sender(String user) {
+            return name.equals(DEFAULT_ROOM) ? user : user + " #" + name;
+        }
+        
+        /**
+         * Send a message to the room on every node (the bus decides the order)
+         */
+        void broadcast(Frame frame) {
+            bus.publish(name, frame);
+        }
+        
+        /**
+         * Queue a message for this node's members, in the room's order
+         */
+        void deliver(Frame frame) {
+            if (!frame.logged()) {
+                queue(frame);
+                return;
+            }
+            
+            // Numbered and queued in one step: every client gets logged messages in seq order
+            // (of all rooms), so the last seq written to it is one it has everything up to
+            synchronized (messageLog.delivery) {
+                messageLog.append(frame);
+                queue(frame);
+            }
+            messages.incrementAndGet();
+        }
+        
+        /**
+         * Queue for every member (never blocks joins/leaves, never throws mid-way)
+         */
+        private void queue(Frame frame) {
+            long start = System.nanoTime();
+            int sent = 0;
+            for (Connection member : members) {
+                // Skip messages a joining client already gets from its history replay
+                if (frame.seq == 0 || frame.seq > member.historyEnd) {
+                    member.send(frame);
+                    sent++;
+                }
+            }
+            deliveries.addAndGet(sent);
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+        
+        void announce(String message) {
+            broadcast(new Frame(sender("SERVER"), System.currentTimeMillis(), message));
+        }
+        
+        /**
+         * Announce with the next announcements that a user did something ("joined the chat! 👋")
+         */
+        void arrived(String user, String what) {
+            synchronized (arrivals) {
+                arrivals.computeIfAbsent(what, key -> new ArrayList<>()).add(user);
+            }
+        }
+        
+        /**
+         * Presence thread: one announcement for everyone who did the same thing
+         */
+        void announceArrivals() {
+            List<String> texts = new ArrayList<>();
+            synchronized (arrivals) {
+                for (Map.Entry<String, List<String>> entry : arrivals.entrySet()) {
+                    texts.add(users(entry.getValue(), entry.getKey()));
+                }
+                arrivals.clear();
+            }
+            for (String text : texts) {
+                announce(text);
+            }
+        }
+        
+        /**
+         * "alice has joined ...", "alice, bob and carol have joined ...", "alice, bob, carol and 97 others have joined ..."
+         */
+        private static String users(List<String> users, String what) {
+            if (users.size() == 1) {
+                return users.get(0) + " has " + what;
+            }
+            
+            int named = users.size() <= ANNOUNCED_NAMES + 1 ? users.size() - 1 : ANNOUNCED_NAMES;
+            StringBuilder text = new StringBuilder(String.join(", ", users.subList(0, named)));
+            if (named == users.size() - 1) {
+                text.append(" and ").append(users.get(named));
+            } else {
+                text.append(" and ").append(users.size() - named).append(" others");
+            }
+            return text.append(" have ").append(what).toString();
+        }
+        
+        /**
+         * Update the recent counts and return the recent message count
+         */
+        long sample() {
+            long total = messages.get();
+            long delivered = deliveries.get();
+            recentMessages = total - reportedMessages;
+            recentDeliveries = delivered - reportedDeliveries;
+            reportedMessages = total;
+            reportedDeliveries = delivered;
+            return recentMessages;
+        }
+    }
+    
+    /**
+     * Presence class - Who is online and who is typing in one room, as members last heard it
+     * Changes are only collected here; publish turns those of the last interval into one
+     * diff frame for every member, so a user who starts and stops typing in between costs nothing
+     *
+     * Body: snapshot (1 byte, 1 = replaces the room's list) | (kind (1 byte) | user (UTF))...
+     * OFFLINE also ends typing, and so does a message of the user (no IDLE is sent for it)
+     */
+    static class Presence {
+        static final int ONLINE = 1;
+        static final int OFFLINE = 2;
+        static final int TYPING = 3;
+        static final int IDLE = 4;
+        
+        private final String sender;
+        
+        // Guarded by this: connections per user, typing users (until when), what members were told
+        private final Map<String, Integer> online = new HashMap<>();
+        private final Map<String, Long> typing = new HashMap<>();
+        private final Set<String> publishedOnline = new HashSet<>();
+        private final Set<String> publishedTyping = new HashSet<>();
+        private final Set<String> changed = new HashSet<>();
+        
+        // Full list for clients that start listening, built once per published state
+        private Frame snapshot;
+        
+        Presence(String sender) {
+            this.sender = sender;
+        }
+        
+        /**
+         * One more (or one less) connection of the user in the room
+         */
+        synchronized void online(String user, boolean entered) {
+            int count = online.getOrDefault(user, 0) + (entered ? 1 : -1);
+            if (count > 0) {
+                online.put(user, count);
+            } else {
+                online.remove(user);
+                typing.remove(user);
+            }
+            changed.add(user);
+        }
+        
+        /**
+         * The user started (or kept) typing, or stopped: sent a message or cleared the input
+         */
+        synchronized void typing(String user, boolean active) {
+            if (active && online.containsKey(user)) {
+                if (typing.put(user, System.currentTimeMillis() + TYPING_TIMEOUT_MS) == null) {
+                    changed.add(user);
+                }
+            } else if (typing.remove(user) != null) {
+                changed.add(user);
+            }
+        }
+        
+        /**
+         * The user's message went out to the room, which tells members the typing stopped:
+         * forget it without publishing an IDLE entry
+         */
+        synchronized void sent(String user) {
+            if (typing.remove(user) != null && publishedTyping.remove(user)) {
+                snapshot = null;
+            }
+        }
+        
+        /**
+         * Changes since the last call as a diff frame, or null when members already know everything
+         * A user is marked published only once its entries are written; one that cannot be
+         * written stays changed, the others still go out
+         */
+        Frame publish(long now) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(entries);
+            synchronized (this) {
+                Iterator<Map.Entry<String, Long>> it = typing.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> entry = it.next();
+                    if (entry.getValue() <= now) {
+                        it.remove();
+                        changed.add(entry.getKey());
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return null;
+                }
+                
+                body.write(0);
+                Iterator<String> users = changed.iterator();
+                while (users.hasNext()) {
+                    String user = users.next();
+                    boolean isOnline = online.containsKey(user);
+                    boolean isTyping = typing.containsKey(user);
+                    boolean onlineChanged = isOnline != publishedOnline.contains(user);
+                    boolean typingChanged = isTyping != publishedTyping.contains(user);
+                    
+                    entries.reset();
+                    try {
+                        if (onlineChanged) {
+                            write(out, isOnline ? ONLINE : OFFLINE, user);
+                        }
+                        if (typingChanged && isOnline) {
+                            write(out, isTyping ? TYPING : IDLE, user);
+                        }
+                    } catch (IOException e) {
+                        events.error("⚠️ Presence error in " + sender + ": " + e.getMessage());
+                        continue;
+                    }
+                    body.write(entries.toByteArray(), 0, entries.size());
+                    
+                    if (onlineChanged) {
+                        if (isOnline) {
+                            publishedOnline.add(user);
+                        } else {
+                            publishedOnline.remove(user);
+                        }
+                    }
+                    if (typingChanged) {
+                        if (isTyping) {
+                            publishedTyping.add(user);
+                        } else {
+                            publishedTyping.remove(user);
+                        }
+                    }
+                    users.remove();
+                }
+                if (body.size() == 1) {
+                    return null;
+                }
+                snapshot = null;
+            }
+            return new Frame(sender, now, TYPE_PRESENCE, body.toByteArray());
+        }
+        
+        /**
+         * Everyone online and typing as last published (the diffs that follow continue from it)
+         */
+        synchronized Frame snapshot() {
+            if (snapshot == null) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(16 * (publishedOnline.size() + 1));
+                DataOutputStream out = new DataOutputStream(body);
+                try {
+                    out.writeByte(1);
+                    for (String user : publishedOnline) {
+                        write(out, ONLINE, user);
+                    }
+                    for (String user : publishedTyping) {
+                        write(out, TYPING, user);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                snapshot = new Frame(sender, System.currentTimeMillis(), TYPE_PRESENCE, body.toByteArray());
+            }
+            return snapshot;
+        }
+        
+        /**
+         * Empty snapshot: the client no longer hears about this room
+         */
+        Frame cleared() {
+            return new Frame(sender, System.currentTimeMillis(), TYPE_PRESENCE, new byte[] {1});
+        }
+        
+        private static void write(DataOutputStream out, int kind, String user) throws IOException {
+            out.writeByte(kind);
+            out.writeUTF(user);
+        }
+    }
+    
+    /**
+     * MessageBus interface - How room messages reach every node with members in the room
+     * publish hands a message over; the bus calls deliver(room, frame) once on each such
+     * node, in the same order on every node for one room
+     */
+    private interface MessageBus {
+        void start() throws IOException;
+        
+        void publish(String room, Frame frame);
+        
+        /**
+         * This node got its first member in a room (true) or lost its last one (false)
+         */
+        void interest(String room, boolean local);
+    }
+    
+    /**
+     * LocalBus class - Single server, every message is delivered right away
+     */
+    private static class LocalBus implements MessageBus {
+        @Override
+        public void start() {
+        }
+        
+        @Override
+        public void publish(String room, Frame frame) {
+            deliver(room, frame);
+        }
+        
+        @Override
+        public void interest(String room, boolean local) {
+        }
+    }
+    
+    /**
+     * PeerMesh class - Cluster bus over one TCP link between every two nodes
+     *
+     * Every room has an owner node (rendezvous hash of the room over the linked nodes).
+     * Other nodes forward their room messages to the owner, which numbers them, delivers
+     * them locally and sends them to each node that has members in the room. As every
+     * node gets a room's messages from the same node over one ordered link, they all see
+     * the same order; the numbers let a node drop a message it already got. Rooms are
+     * numbered under different locks, so numbers only rise within one room on one link.
+     *
+     * Link message: type (1) | length (4) | body
+     */
+    static class PeerMesh implements MessageBus {
+        private static final int HELLO = 1;
+        private static final int INTEREST = 2;
+        private static final int FORWARD = 3;
+        private static final int DELIVER = 4;
+        private static final long RECONNECT_DELAY_MS = 2000;
+        
+        // Linked nodes by id (one link each)
+        final Map<String, Link> links = new ConcurrentHashMap<>();
+        
+        // Rooms with members on this node
+        private final Set<String> interests = ConcurrentHashMap.newKeySet();
+        
+        // Numbers of delivered messages; start from the clock so a restarted node is not taken for old
+        private final AtomicLong nextSeq = new AtomicLong(System.currentTimeMillis() << 20);
+        
+        // Owner side: numbering and sending one room's message happen under one of these locks
+        private final Object[] roomLocks = new Object[64];
+        
+        PeerMesh() {
+            for (int i = 0; i < roomLocks.length; i++) {
+                roomLocks[i] = new Object();
+            }
+        }
+        
+        @Override
+        public void start() throws IOException {
+            ServerSocket listener = new ServerSocket(clusterPort);
+            startThread("cluster-accept", () -> {
+                while (true) {
+                    try {
+                        Socket socket = listener.accept();
+                        startThread("cluster-link", new Link(socket, false)::run);
+                    } catch (IOException e) {
+                        events.error("❌ Cluster accept error: " + e.getMessage());
+                    }
+                }
+            });
+            
+            for (InetSocketAddress peer : peers) {
+                startThread("cluster-dial-" + peer, () -> dial(peer));
+            }
+        }
+        
+        private static void startThread(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        /**
+         * Keep a link to one configured peer (the link runs on this thread)
+         */
+        private void dial(InetSocketAddress address) {
+            String peerId = null;
+            while (true) {
+                // An incoming link from the same node is just as good
+                if (peerId == null || !links.containsKey(peerId)) {
+                    try {
+                        Socket socket = new Socket();
+                        socket.connect(address, 5000);
+                        Link link = new Link(socket, true);
+                        link.run();
+                        peerId = link.peerId;
+                    } catch (IOException e) {
+                        // Not up yet, try again later
+                    }
+                }
+                
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        
+        @Override
+        public void publish(String room, Frame frame) {
+            String owner = owner(room);
+            Link link = owner.equals(nodeId) ? null : links.get(owner);
+            if (link == null) {
+                sequence(room, frame);
+                return;
+            }
+            
+            try {
+                link.send(FORWARD, relay(0, room, frame));
+            } catch (IOException e) {
+                events.error("❌ Cluster relay error: " + e.getMessage());
+            }
+        }
+        
+        @Override
+        public void interest(String room, boolean local) {
+            if (local) {
+                interests.add(room);
+            } else {
+                interests.remove(room);
+            }
+            
+            byte[] message = interestMessage(room, local);
+            for (Link link : links.values()) {
+                link.send(INTEREST, message);
+                if (!local) {
+                    link.delivered.remove(room);
+                }
+            }
+        }
+        
+        /**
+         * Owner side: number a room message and deliver it everywhere in that order
+         */
+        void sequence(String room, Frame frame) {
+            synchronized (roomLocks[(room.hashCode() & 0x7fffffff) % roomLocks.length]) {
+                long seq = nextSeq.getAndIncrement();
+                byte[] message = null;
+                for (Link link : links.values()) {
+                    if (link.rooms.contains(room)) {
+                        // Encoded once for all nodes
+                        if (message == null) {
+                            try {
+                                message = relay(seq, room, frame);
+                            } catch (IOException e) {
+                                events.error("❌ Cluster relay error: " + e.getMessage());
+                                break;
+                            }
+                        }
+                        link.send(DELIVER, message);
+                    }
+                }
+                deliver(room, frame);
+            }
+        }
+        
+        /**
+         * Owner of a room: the node with the highest hash of (room, node)
+         */
+        private String owner(String room) {
+            String owner = nodeId;
+            long best = score(room, nodeId);
+            for (String peer : links.keySet()) {
+                long score = score(room, peer);
+                if (score > best || (score == best && peer.compareTo(owner) < 0)) {
+                    owner = peer;
+                    best = score;
+                }
+            }
+            return owner;
+        }
+        
+        private static long score(String room, String node) {
+            long hash = (room + "@" + node).hashCode() * 0x9E3779B97F4A7C15L;
+            return hash ^ (hash >>> 29);
+        }
+        
+        private static byte[] relay(long seq, String room, Frame frame) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(seq);
+            out.writeUTF(room);
+            frame.writeRelay(out);
+            return bytes.toByteArray();
+        }
+        
+        private static byte[] interestMessage(String room, boolean local) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(room);
+                out.writeBoolean(local);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * Link class - Connection to one other node (reader on the calling thread, writer on its own)
+         */
+        class Link {
+            private final Socket socket;
+            private final boolean dialed;
+            final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+            private volatile boolean closed;
+            volatile String peerId;
+            
+            // Rooms with members on the other node
+            final Set<String> rooms = ConcurrentHashMap.newKeySet();
+            
+            // Last number delivered per room owned by the other node
+            private final Map<String, Long> delivered = new ConcurrentHashMap<>();
+            
+            Link(Socket socket, boolean dialed) {
+                this.socket = socket;
+                this.dialed = dialed;
+            }
+            
+            void send(int type, byte[] body) {
+                byte[] message = new byte[5 + body.length];
+                ByteBuffer.wrap(message).put((byte) type).putInt(body.length).put(body);
+                outbound.add(message);
+            }
+            
+            void run() {
+                try {
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE));
+                    startThread("cluster-writer", this::writeLoop);
+                    send(HELLO, nodeId.getBytes(StandardCharsets.UTF_8));
+                    
+                    int type;
+                    while ((type = in.read()) != -1) {
+                        int length = in.readInt();
+                        if (length < 0 || length > 2 * MAX_FRAME_SIZE) {
+                            throw new IOException("Cluster message too large: " + length);
+                        }
+                        byte[] body = new byte[length];
+                        in.readFully(body);
+                        
+                        if (type == HELLO) {
+                            if (!register(new String(body, StandardCharsets.UTF_8))) {
+                                break;
+                            }
+                        } else if (peerId != null) {
+                            handle(type, new DataInputStream(new ByteArrayInputStream(body)));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Link lost, the dialer reconnects
+                } finally {
+                    close();
+                    if (peerId != null && links.remove(peerId, this)) {
+                        events.info("🔌 Lost link to node " + peerId);
+                    }
+                }
+            }
+            
+            /**
+             * Keep one link per node: a new link replaces one dialed from the same side;
+             * of two links dialed from both sides, the one dialed by the lower node id stays
+             */
+            private boolean register(String id) {
+                peerId = id;
+                if (id.equals(nodeId)) {
+                    return false;
+                }
+                
+                synchronized (links) {
+                    Link existing = links.get(id);
+                    if (existing != null && existing.dialer().compareTo(dialer()) < 0) {
+                        return false;
+                    }
+                    links.put(id, this);
+                    if (existing != null) {
+                        existing.close();
+                    }
+                }
+                
+                events.info("🔗 Linked with node " + id);
+                for (String room : interests) {
+                    send(INTEREST, interestMessage(room, true));
+                }
+                return true;
+            }
+            
+            private String dialer() {
+                return dialed ? nodeId : peerId;
+            }
+            
+            private void handle(int type, DataInputStream in) throws IOException {
+                if (type == INTEREST) {
+                    String room = in.readUTF();
+                    if (in.readBoolean()) {
+                        rooms.add(room);
+                    } else {
+                        rooms.remove(room);
+                    }
+                    return;
+                }
+                
+                long seq = in.readLong();
+                String room = in.readUTF();
+                Frame frame = Frame.readRelay(in);
+                if (frame.image != null) {
+                    // Local clients fetch the full image from this node's store
+                    mediaStore.store(frame.image);
+                }
+                
+                if (type == FORWARD) {
+                    sequence(room, frame);
+                } else if (type == DELIVER && fresh(room, seq)) {
+                    deliver(room, frame);
+                }
+            }
+            
+            /**
+             * Whether a delivered room message is new (reader thread only)
+             */
+            boolean fresh(String room, long seq) {
+                Long last = delivered.get(room);
+                if (last != null && seq <= last) {
+                    return false;
+                }
+                delivered.put(room, seq);
+                return true;
+            }
+            
+            private void writeLoop() {
+                try {
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BATCH_SIZE);
+                    while (!closed) {
+                        byte[] message = outbound.take();
+                        if (message.length == 0) {
+                            break;
+                        }
+                        out.write(message);
+                        if (outbound.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    close();
+                }
+            }
+            
+            void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                outbound.add(new byte[0]);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+    
+    /**
+     * Transfer class - Progress of one file relayed chunk by chunk (no file data is kept)
+     */
+    private static class Transfer {
+        final long id;
+        final String owner;
+        final String name;
+        final long size;
+        
+        // Room the file was shared in (chunks go to its members)
+        final Room room;
+        
+        // Updated only by the owner's connection
+        volatile long received;
+        volatile long lastActivity = System.currentTimeMillis();
+        
+        Transfer(long id, String owner, String name, long size, Room room) {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.size = size;
+            this.room = room;
+        }
+    }
+    
+    /**
+     * Forget transfers nobody continued for a while
+     */
+    private static void expireTransfers() {
+        long now = System.currentTimeMillis();
+        transfers.values().removeIf(transfer -> now - transfer.lastActivity > TRANSFER_TIMEOUT_MS);
+    }
+    
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+    
+    /**
+     * Encoded class - Bytes of one frame in one wire format
+     */
+    private static class Encoded {
+        // Encoded bytes (null when they are only in a direct buffer)
+        final byte[] bytes;
+        
+        // Read-only buffer handed to channels
+        final ByteBuffer data;
+        
+        Encoded(byte[] bytes) {
+            if (mode.equals("nio") && bytes.length >= DIRECT_BUFFER_MIN_SIZE) {
+                // Direct buffer - channels write a large frame (image) as is instead of
+                // copying it into a temporary direct buffer for every recipient
+                ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+                direct.put(bytes).flip();
+                this.bytes = null;
+                this.data = direct.asReadOnlyBuffer();
+            } else {
+                this.bytes = bytes;
+                this.data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+        }
+    }
+    
+    /**
+     * OutboundQueue class - Bounded queue of frames waiting to be written to one client
+     * Uses a lock instead of a monitor so virtual writer threads can park on it
+     */
+    static class OutboundQueue {
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        
+        // Live logged messages kept back while history is queued ahead of them (null when not holding)
+        private ArrayDeque<Frame> held;
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final int capacity;
+        private final String policy;
+        private long dropped;
+        private boolean closed;
+        
+        OutboundQueue() {
+            this(queueCapacity, slowPolicy);
+        }
+        
+        OutboundQueue(int capacity, String policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+        
+        /**
+         * Add a frame, applying the slow-client policy when the queue is full
+         * Returns false when the client should be disconnected
+         */
+        boolean offer(Frame frame) {
+            return offer(frame, false);
+        }
+        
+        /**
+         * Add a frame read from the message log: it goes ahead of held live messages
+         */
+        boolean offerHistory(Frame frame) {
+            return offer(frame, true);
+        }
+        
+        private boolean offer(Frame frame, boolean history) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return true;
+                }
+                
+                if (frames.size() + (held != null ? held.size() : 0) >= capacity) {
+                    if (policy.equals("disconnect")) {
+                        return false;
+                    }
+                    
+                    if (policy.equals("drop-images") && !removeOldestMedia(frames)
+                            && (held == null || !removeOldestMedia(held))) {
+                        if (frame.media) {
+                            // Nothing cheaper to drop than the new image itself
+                            dropped++;
+                            metrics.dropped.increment();
+                            return true;
+                        }
+                        if (!removeOldest()) {
+                            // Only essential frames queued: the client is not reading at all
+                            return false;
+                        }
+                    } else if (policy.equals("drop-oldest") && !removeOldest()) {
+                        return false;
+                    }
+                    dropped++;
+                    metrics.dropped.increment();
+                }
+                
+                if (held != null && !history && frame.seq > 0) {
+                    held.addLast(frame);
+                    return true;
+                }
+                frames.addLast(frame);
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Drop the oldest frame that is not essential (a dropped handshake reply would leave
+         * the client reading frames in the wrong format)
+         * Returns false when every queued frame is essential
+         */
+        private boolean removeOldest() {
+            Iterator<Frame> it = frames.iterator();
+            while (it.hasNext()) {
+                if (!it.next().essential()) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return held != null && held.pollFirst() != null;
+        }
+        
+        private boolean removeOldestMedia(ArrayDeque<Frame> frames) {
+            Iterator<Frame> it = frames.iterator();
+            while (it.hasNext()) {
+                if (it.next().media) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Move every queued frame into the batch without waiting
+         */
+        void drainTo(List<Frame> batch) {
+            lock.lock();
+            try {
+                batch.addAll(frames);
+                frames.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Wait for frames and move them all into the batch
+         * Returns false once the queue is closed
+         */
+        boolean take(List<Frame> batch) throws InterruptedException {
+            lock.lock();
+            try {
+                while (frames.isEmpty() && !closed) {
+                    notEmpty.await();
+                }
+                if (closed) {
+                    return false;
+                }
+                batch.addAll(frames);
+                frames.clear();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Keep live logged messages back until release (history is queued meanwhile)
+         */
+        void hold() {
+            lock.lock();
+            try {
+                held = new ArrayDeque<>();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Queue the held messages after everything queued so far
+         */
+        void release() {
+            lock.lock();
+            try {
+                if (held != null && !held.isEmpty()) {
+                    frames.addAll(held);
+                    notEmpty.signal();
+                }
+                held = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        int size() {
+            lock.lock();
+            try {
+                return frames.size() + (held != null ? held.size() : 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Nothing left to write (held messages do not count)
+         */
+        boolean drained() {
+            lock.lock();
+            try {
+                return frames.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        long dropped() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                frames.clear();
+                held = null;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * RateLimiter class - Token bucket kept as a single timestamp (GCRA): the time at which
+     * the bucket is full again. Taking tokens is one CAS, so the connections of one user
+     * can share a bucket without a lock on the read path
+     */
+    static class RateLimiter {
+        private final long perSecond;
+        private final long burstNanos;
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+        
+        RateLimiter(long perSecond, int burstSeconds) {
+            this.perSecond = perSecond;
+            this.burstNanos = TimeUnit.SECONDS.toNanos(burstSeconds);
+        }
+        
+        /**
+         * Take tokens, going into debt when there are not enough
+         * Returns how long to wait until the bucket is back within its burst (0 = no wait)
+         */
+        long acquire(long tokens) {
+            long now = System.nanoTime();
+            long refill = tokens * 1000000000L / perSecond;
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + refill;
+                if (fullAt.compareAndSet(current, next)) {
+                    return Math.max(0, next - now - burstNanos);
+                }
+            }
+        }
+        
+        boolean full() {
+            return fullAt.get() - System.nanoTime() <= 0;
+        }
+    }
+    
+    /**
+     * Limits class - Message and byte rate limits of one connection, or of all connections
+     * of one user (then connections counts them, changed only inside userLimits.compute)
+     */
+    static class Limits {
+        private final RateLimiter messages = messageRate > 0 ? new RateLimiter(messageRate, RATE_BURST_SECONDS) : null;
+        private final RateLimiter bytes = byteRate > 0 ? new RateLimiter(byteRate, RATE_BURST_SECONDS) : null;
+        int connections;
+        
+        /**
+         * Charge one received line or frame (messages is 0 for file chunks)
+         * Returns how long reading should pause
+         */
+        long charge(int messageCount, int byteCount) {
+            long wait = 0;
+            if (messages != null && messageCount > 0) {
+                wait = messages.acquire(messageCount);
+            }
+            if (bytes != null) {
+                wait = Math.max(wait, bytes.acquire(byteCount));
+            }
+            return wait;
+        }
+        
+        boolean idle() {
+            return (messages == null || messages.full()) && (bytes == null || bytes.full());
+        }
+    }
+    
+    /**
+     * Shared limits of a user, counted for one more connection
+     */
+    private static Limits userLimits(String user) {
+        expireUserLimits();
+        return userLimits.compute(user, (name, limits) -> {
+            if (limits == null) {
+                limits = new Limits();
+            }
+            limits.connections++;
+            return limits;
+        });
+    }
+    
+    /**
+     * One connection of a user less; the entry goes once nobody uses it and it has refilled
+     */
+    private static void releaseUserLimits(String user) {
+        userLimits.computeIfPresent(user, (name, limits) -> --limits.connections == 0 && limits.idle() ? null : limits);
+    }
+    
+    /**
+     * Drop entries of users who left while over their limits (at most once a minute)
+     */
+    private static void expireUserLimits() {
+        long now = System.currentTimeMillis();
+        long last = limitsExpired.get();
+        if (now - last < LIMITS_EXPIRY_MS || !limitsExpired.compareAndSet(last, now)) {
+            return;
+        }
+        for (String user : userLimits.keySet()) {
+            userLimits.computeIfPresent(user, (name, limits) -> limits.connections == 0 && limits.idle() ? null : limits);
+        }
+    }
+    
+    /**
+     * Connection class - Protocol handling shared by every transport
+     */
+    static abstract class Connection {
+        protected final long id = nextClientId.getAndIncrement();
+        protected final OutboundQueue outbound = new OutboundQueue();
+        protected String username;
+        
+        // Wire format chosen at handshake (read by the writer), and whether text frames go deflated
+        protected volatile boolean binary;
+        protected volatile boolean deflate;
+        
+        // Logged messages up to this seq come from the history replay, not live
+        volatile long historyEnd = Long.MAX_VALUE;
+        
+        // Resume catch-up, read in pages as the queue drains (live messages are held back
+        // until it ends): last seq looked at, the seq it ends at, what it queued and whether
+        // anything was lost; one page at a time, passed between threads by pageRunning
+        private volatile boolean catchingUp;
+        private final AtomicBoolean pageRunning = new AtomicBoolean();
+        private long catchUpSeq;
+        private long catchUpEnd;
+        private int caughtUp;
+        private long droppedBefore;
+        private boolean incomplete;
+        
+        // Resumable session asked for by the client; the writer tells it the last logged seq written
+        protected volatile boolean session;
+        
+        // Asked for presence: gets its rooms' online and typing users, then their changes
+        protected volatile boolean presence;
+        private long writtenSeq;
+        private long reportedSeq;
+        
+        // Rooms joined by name, and the one this client's messages go to
+        protected final Map<String, Room> joined = new ConcurrentHashMap<>();
+        protected volatile Room current;
+        
+        // Inbound rate limits of this connection, and of this user once joined (reader only)
+        private final Limits limits = new Limits();
+        private Limits sharedLimits;
+        
+        /**
+         * Queue one frame for this client
+         */
+        void send(Frame frame) {
+            if (frame.binaryOnly && !binary) {
+                return;
+            }
+            if (outbound.offer(frame)) {
+                onQueued();
+            } else {
+                events.info("🐢 " + username + " is too slow, disconnecting");
+                disconnect();
+            }
+        }
+        
+        /**
+         * Queue one frame read from the message log (ahead of held live messages)
+         */
+        void sendHistory(Frame frame) {
+            if (frame.binaryOnly && !binary) {
+                return;
+            }
+            if (outbound.offerHistory(frame)) {
+                onQueued();
+            } else {
+                events.info("🐢 " + username + " is too slow, disconnecting");
+                disconnect();
+            }
+        }
+        
+        /**
+         * Let the held live messages follow the history queued so far
+         */
+        void releaseHeld() {
+            outbound.release();
+            onQueued();
+        }
+        
+        /**
+         * Writer, once everything queued is written: whether the next catch-up page is due
+         * (then the caller runs catchUp on a thread that may block)
+         */
+        boolean nextPageDue() {
+            return catchingUp && outbound.drained() && pageRunning.compareAndSet(false, true);
+        }
+        
+        /**
+         * Queue the next page of a resume catch-up (at most half the outbound queue of the
+         * client's rooms), or finish it; reads the log, so it runs where blocking is allowed
+         */
+        void catchUp() {
+            do {
+                try {
+                    List<Frame> page = new ArrayList<>();
+                    long seq = catchUpSeq;
+                    while (page.isEmpty() && seq < catchUpEnd) {
+                        long next = messageLog.read(seq, catchUpEnd, Math.max(1, queueCapacity / 2),
+                            frame -> joined.containsKey(roomOf(frame.sender)), page);
+                        if (next == seq) {
+                            // The log thread is behind, its next records are not readable yet
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                        }
+                        seq = next;
+                    }
+                    for (Frame frame : page) {
+                        Frame history = historyFrame(frame);
+                        if (history == null) {
+                            incomplete = true;
+                            continue;
+                        }
+                        sendHistory(history);
+                        caughtUp++;
+                    }
+                    catchUpSeq = seq;
+                } catch (IOException | RuntimeException e) {
+                    events.error("⚠️ History error: " + e);
+                    incomplete = true;
+                    catchUpSeq = catchUpEnd;
+                }
+                
+                if (catchUpSeq >= catchUpEnd) {
+                    finishCatchUp();
+                    return;
+                }
+                
+                // The writer starts the next page once this one is written (or it already was)
+                pageRunning.set(false);
+            } while (nextPageDue());
+        }
+        
+        private void finishCatchUp() {
+            catchingUp = false;
+            releaseHeld();
+            events.info("🔄 " + username + " (#" + id + ") resumed, " + caughtUp + " missed messages");
+            
+            if (incomplete || outbound.dropped() > droppedBefore) {
+                notice("Resume incomplete: some of the messages you missed could not be sent (try /history)");
+            }
+        }
+        
+        /**
+         * Writer only: follow a batch with a checkpoint when it carries newer logged messages
+         * (the client resumes from the last checkpoint it read)
+         */
+        void checkpoint(List<Frame> batch) {
+            for (Frame frame : batch) {
+                writtenSeq = Math.max(writtenSeq, frame.seq);
+            }
+            if (session && writtenSeq > reportedSeq) {
+                reportedSeq = writtenSeq;
+                batch.add(new Frame("SERVER", System.currentTimeMillis(), TYPE_CHECKPOINT,
+                    ByteBuffer.allocate(8).putLong(writtenSeq).array()));
+            }
+        }
+        
+        /**
+         * Writer only: the frame's bytes in a format, or null when it cannot be encoded
+         * (that one frame is skipped, the writer and the rest of the batch go on)
+         */
+        ByteBuffer encode(Frame frame, int format) {
+            try {
+                return frame.buffer(format);
+            } catch (RuntimeException e) {
+                events.error("❌ Frame Error: " + e);
+                return null;
+            }
+        }
+        
+        /**
+         * Wire format frames are written in for this client
+         */
+        int format() {
+            return deflate ? DEFLATE_FORMAT : binary ? BINARY_FORMAT : TEXT_FORMAT;
+        }
+        
+        /**
+         * Called after a frame was queued (wake up the writer)
+         */
+        abstract void onQueued();
+        
+        /**
+         * Drop the connection from any thread; cleanup runs on the connection's own thread
+         */
+        abstract void disconnect();
+        
+        /**
+         * Stop reading from the client for a while (called by the reader)
+         */
+        abstract void throttle(long nanos);
+        
+        /**
+         * Run blocking work for the frame being handled (called by the reader); later input
+         * from this client is handled only after it, so the order of its messages is kept
+         */
+        abstract void offload(Blocking work) throws IOException;
+        
+        /**
+         * Blocking interface - Work that may wait on the disk
+         */
+        interface Blocking {
+            void run() throws IOException;
+        }
+        
+        /**
+         * Charge one received line or frame to the rate limits and pause reading when the
+         * client is over its burst; false when it is so far over that it should be disconnected
+         */
+        private boolean admit(boolean message, int byteCount) {
+            int messageCount = message ? 1 : 0;
+            long wait = limits.charge(messageCount, byteCount);
+            if (sharedLimits != null) {
+                wait = Math.max(wait, sharedLimits.charge(messageCount, byteCount));
+            }
+            if (wait == 0) {
+                return true;
+            }
+            
+            if (wait > TimeUnit.MILLISECONDS.toNanos(MAX_THROTTLE_MS)) {
+                metrics.floodDisconnects.increment();
+                events.info("🚫 " + (username != null ? username : "#" + id) + " is flooding, disconnecting");
+                return false;
+            }
+            metrics.throttled.increment();
+            throttle(wait);
+            return true;
+        }
+        
+        /**
+         * Handle one complete line received from the client
+         * Returns false when the client wants to quit
+         */
+        boolean handleLine(String message) throws IOException {
+            // Characters of the line (the same as bytes for commands, TEXT: in ASCII and Base64 images)
+            metrics.received(message.startsWith("IMAGE:") ? TYPE_IMAGE : TYPE_TEXT, message.length() + 1);
+            if (!admit(true, message.length() + 1)) {
+                return false;
+            }
+            
+            // First line is the handshake or (older clients) just the username
+            if (username == null) {
+                if (message.startsWith("HELLO ")) {
+                    String[] parts = message.split(" ", 3);
+                    boolean accepted = parts[1].equals(BINARY_PROTOCOL);
+                    String name = parts.length > 2 ? parts[2] : "User" + id;
+                    
+                    // A reconnecting client puts its resume token and last seq before the name
+                    String resume = null;
+                    if (accepted && name.startsWith("resume:")) {
+                        String[] resumed = name.split(" ", 2);
+                        resume = resumed[0].substring("resume:".length());
+                        name = resumed.length > 1 ? resumed[1] : "User" + id;
+                    }
+                    
+                    // Reply before switching, then every later frame uses the agreed format
+                    send(Frame.control("WELCOME " + (accepted ? BINARY_PROTOCOL : "text")));
+                    binary = accepted;
+                    join(name, resume);
+                } else {
+                    join(message, null);
+                }
+                return true;
+            }
+            
+            if (message.equals("/quit")) {
+                return false;
+            }
+            
+            if (command(message.startsWith("TEXT:") ? message.substring(5) : message)) {
+                return true;
+            }
+            
+            events.message(username, message);
+            
+            // Broadcast message to the current room
+            Room room = current;
+            room.presence.sent(username);
+            if (message.startsWith("IMAGE:")) {
+                offload(() -> shareImage(Frame.decodeBase64(message.substring(6)), message));
+            } else {
+                room.broadcast(new Frame(room.sender(username), System.currentTimeMillis(), message));
+            }
+            return true;
+        }
+        
+        /**
+         * Handle one binary frame received from the client
+         * Returns false when the client wants to quit
+         */
+        boolean handleFrame(int type, byte[] payload) throws IOException {
+            metrics.received(type & ~Compression.FLAG, 5 + payload.length);
+            
+            // File chunks only count as bytes (a file is one message)
+            if (!admit((type & ~Compression.FLAG) != TYPE_FILE_CHUNK, 5 + payload.length)) {
+                return false;
+            }
+            
+            if ((type & Compression.FLAG) != 0) {
+                // Deflated by a client that asked for compression; nobody else may send them
+                if (!deflate) {
+                    events.info("🚫 " + (username != null ? username : "#" + id) + " sent a compressed frame without compression, disconnecting");
+                    return false;
+                }
+                type &= ~Compression.FLAG;
+                int compressed = payload.length;
+                payload = Compression.inflate(payload, maxFrameSize);
+                
+                // The byte limit is on what the client makes us handle, not on what it sent
+                if (!admit(false, Math.max(0, payload.length - compressed))) {
+                    return false;
+                }
+            }
+            
+            if (type == TYPE_QUIT) {
+                return false;
+            }
+            
+            if (type == TYPE_COMPRESS) {
+                // Methods the client supports; the reply names the one used from now on (none: empty)
+                boolean accepted = Arrays.asList(new String(payload, StandardCharsets.UTF_8).split(" ")).contains(Compression.METHOD);
+                send(Frame.plain("SERVER", System.currentTimeMillis(), TYPE_COMPRESS,
+                    (accepted ? Compression.METHOD : "").getBytes(StandardCharsets.UTF_8)));
+                
+                // Only once the reply is queued: the writer picks up the new format with its next batch
+                deflate = accepted;
+                return true;
+            }
+            
+            if (type == TYPE_SESSION) {
+                // Checkpoints from now on, and a token to resume with after a reconnect
+                session = true;
+                sendSession();
+                return true;
+            }
+            
+            if (type == TYPE_PRESENCE) {
+                // Current lists first, the changes follow from the presence thread
+                presence = true;
+                for (Room room : joined.values()) {
+                    send(room.presence.snapshot());
+                }
+                return true;
+            }
+            
+            if (type == TYPE_TYPING) {
+                // 1 while typing (repeated before it times out), 0 when the input was cleared
+                current.presence.typing(username, payload.length > 0 && payload[0] != 0);
+                return true;
+            }
+            
+            if (type == TYPE_FILE_BEGIN) {
+                beginTransfer(payload);
+                return true;
+            } else if (type == TYPE_FILE_CHUNK) {
+                relayChunk(payload);
+                return true;
+            } else if (type == TYPE_MEDIA_FETCH) {
+                byte[] hash = payload;
+                offload(() -> sendMedia(hash));
+                return true;
+            } else if (type == TYPE_IMAGE) {
+                events.message(username, "IMAGE:");
+                current.presence.sent(username);
+                byte[] image = payload;
+                offload(() -> shareImage(image, null));
+                return true;
+            } else if (type == TYPE_TEXT) {
+                String text = new String(payload, StandardCharsets.UTF_8);
+                if (command(text)) {
+                    return true;
+                }
+                events.message(username, text);
+            } else {
+                // Unknown frame from a newer client, skip it
+                return true;
+            }
+            
+            // Sending ends typing without a separate frame
+            Room room = current;
+            room.presence.sent(username);
+            room.broadcast(new Frame(room.sender(username), System.currentTimeMillis(), type, payload));
+            return true;
+        }
+        
+        /**
+         * Chat commands (answered to this client only); false when the text is a normal message
+         */
+        private boolean command(String text) throws IOException {
+            String[] parts = text.trim().split("\\s+");
+            if (parts[0].equals("/history")) {
+                history(parts);
+            } else if (parts[0].equals("/join")) {
+                joinRoom(parts.length == 2 ? parts[1] : "");
+            } else if (parts[0].equals("/leave")) {
+                leaveRoom(parts.length == 1 ? current.name : parts.length == 2 ? parts[1] : "");
+            } else if (parts[0].equals("/rooms")) {
+                listRooms();
+            } else {
+                return false;
+            }
+            return true;
+        }
+        
+        private void notice(String message) {
+            send(new Frame("SERVER", System.currentTimeMillis(), message));
+        }
+        
+        /**
+         * Send the resume token (again after a room change): "<log id>.<current room>,<room>..."
+         */
+        private void sendSession() {
+            if (!session) {
+                return;
+            }
+            
+            StringBuilder token = new StringBuilder(messageLog.id).append('.').append(current.name);
+            for (String room : joined.keySet()) {
+                if (!room.equals(current.name)) {
+                    token.append(',').append(room);
+                }
+            }
+            send(new Frame("SERVER", System.currentTimeMillis(), TYPE_SESSION,
+                token.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        
+        /**
+         * "/join room" - join a room (or switch to one already joined); messages go there from now on
+         */
+        private void joinRoom(String name) {
+            String roomName = roomName(name);
+            if (roomName == null) {
+                notice("Room names use letters, digits, - and _ (up to 32)");
+                return;
+            }
+            
+            Room room = joined.get(roomName);
+            if (room == null) {
+                room = enterRoom(roomName, this);
+                joined.put(roomName, room);
+                room.arrived(username, "joined #" + roomName + " 👋");
+                if (presence) {
+                    send(room.presence.snapshot());
+                }
+            }
+            current = room;
+            notice("Now talking in #" + roomName);
+            sendSession();
+        }
+        
+        /**
+         * "/leave [room]" - leave a room (the current one by default); the default room cannot be left
+         */
+        private void leaveRoom(String name) {
+            String roomName = roomName(name);
+            Room room = roomName != null ? joined.get(roomName) : null;
+            if (room == null || roomName.equals(DEFAULT_ROOM)) {
+                notice("You are not in #" + name + " (and #" + DEFAULT_ROOM + " cannot be left)");
+                return;
+            }
+            
+            joined.remove(roomName);
+            exitRoom(room, this);
+            room.arrived(username, "left #" + roomName);
+            if (presence) {
+                send(room.presence.cleared());
+            }
+            if (current == room) {
+                current = joined.get(DEFAULT_ROOM);
+            }
+            notice("Left #" + roomName + ", now talking in #" + current.name);
+            sendSession();
+        }
+        
+        /**
+         * "/rooms" - all rooms with members and message counts (* = joined, > = current)
+         */
+        private void listRooms() {
+            StringBuilder list = new StringBuilder("Rooms:");
+            for (Room room : rooms.values()) {
+                list.append(room == current ? " >" : joined.containsKey(room.name) ? " *" : " ")
+                    .append("#").append(room.name)
+                    .append(" (").append(room.members.size()).append(" users, ")
+                    .append(room.messages.get()).append(" messages)");
+            }
+            notice(list.toString());
+        }
+        
+        /**
+         * "/history [N]" or "/history since HH:mm" - replay older messages of this client's rooms
+         */
+        private void history(String[] parts) throws IOException {
+            long since;
+            int limit;
+            try {
+                if (parts.length > 2 && parts[1].equals("since")) {
+                    since = sinceMillis(parts[2]);
+                    limit = queueCapacity;
+                } else {
+                    since = 0;
+                    limit = parts.length > 1 ? Integer.parseInt(parts[1]) : historySize;
+                }
+            } catch (NumberFormatException | java.text.ParseException e) {
+                notice("Usage: /history [N] or /history since HH:mm");
+                return;
+            }
+            
+            // The log may be read from disk
+            offload(() -> replay(0, since, limit, Long.MAX_VALUE));
+        }
+        
+        /**
+         * Epoch millis of a time today (HH:mm) or of a raw epoch millis value
+         */
+        private long sinceMillis(String value) throws java.text.ParseException {
+            if (!value.contains(":")) {
+                return Long.parseLong(value);
+            }
+            
+            Calendar time = Calendar.getInstance();
+            time.setTime(new SimpleDateFormat("HH:mm").parse(value));
+            Calendar since = Calendar.getInstance();
+            since.set(Calendar.HOUR_OF_DAY, time.get(Calendar.HOUR_OF_DAY));
+            since.set(Calendar.MINUTE, time.get(Calendar.MINUTE));
+            since.set(Calendar.SECOND, 0);
+            since.set(Calendar.MILLISECOND, 0);
+            return since.getTimeInMillis();
+        }
+        
+        /**
+         * Queue logged messages of joined rooms (at most half the outbound queue, so live ones still fit)
+         * Returns how many were queued; reads the log and the media store, so run it through offload
+         */
+        int replay(long afterSeq, long sinceMillis, int limit, long toSeq) {
+            int sent = 0;
+            if (limit <= 0) {
+                return sent;
+            }
+            
+            try {
+                int max = Math.min(limit, Math.max(1, queueCapacity / 2));
+                for (Frame frame : messageLog.history(afterSeq, sinceMillis, max, toSeq)) {
+                    if (!joined.containsKey(roomOf(frame.sender))) {
+                        continue;
+                    }
+                    frame = historyFrame(frame);
+                    if (frame != null) {
+                        sendHistory(frame);
+                        sent++;
+                    }
+                }
+            } catch (IOException e) {
+                events.error("⚠️ History error: " + e.getMessage());
+            }
+            return sent;
+        }
+        
+        /**
+         * A logged frame as this client gets it: text clients need the full image behind a
+         * media reference, which the log does not hold (null when the store lost it)
+         */
+        private Frame historyFrame(Frame frame) throws IOException {
+            if (binary || !frame.binaryOnly || frame.type != TYPE_MEDIA_REF) {
+                return frame;
+            }
+            ByteBuffer image = mediaStore.get(Arrays.copyOf(frame.payload, 32));
+            if (image == null) {
+                return null;
+            }
+            byte[] bytes = new byte[image.remaining()];
+            image.get(bytes);
+            return Frame.image(frame.sender, frame.millis, frame.payload, bytes, null);
+        }
+        
+        /**
+         * Store a shared image and broadcast its reference
+         * text is the IMAGE:<base64> line of a text-protocol sender (null for binary)
+         */
+        private void shareImage(byte[] image, String text) {
+            Room room = current;
+            byte[] reference;
+            try {
+                reference = mediaStore.store(image);
+            } catch (IOException e) {
+                // Store unavailable, send the full image as before
+                events.error("⚠️ Media store error: " + e.getMessage());
+                room.broadcast(text != null
+                    ? new Frame(room.sender(username), System.currentTimeMillis(), text)
+                    : new Frame(room.sender(username), System.currentTimeMillis(), TYPE_IMAGE, image));
+                return;
+            }
+            
+            room.broadcast(Frame.image(room.sender(username), System.currentTimeMillis(), reference, image, text));
+        }
+        
+        /**
+         * Reply to a media fetch: hash (32) | image bytes (only the hash when it is unknown)
+         */
+        private void sendMedia(byte[] hash) throws IOException {
+            if (hash.length != 32) {
+                return;
+            }
+            
+            ByteBuffer image = mediaStore.get(hash);
+            int size = image != null ? image.remaining() : 0;
+            ByteBuffer reply = ByteBuffer.allocate(32 + size).put(hash);
+            if (image != null) {
+                reply.put(image);
+            }
+            send(new Frame("SERVER", System.currentTimeMillis(), TYPE_MEDIA_DATA, reply.array()));
+        }
+        
+        /**
+         * Start (or resume) a file transfer: id (8) | name (UTF) | size (8)
+         */
+        private void beginTransfer(byte[] payload) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            long transferId = data.readLong();
+            String name = data.readUTF();
+            long size = data.readLong();
+            
+            expireTransfers();
+            
+            Transfer transfer = transfers.get(transferId);
+            if (transfer == null) {
+                Room room = current;
+                transfer = new Transfer(transferId, username, name, size, room);
+                transfers.put(transferId, transfer);
+                
+                events.info(username + ": [sending file " + name + " (" + formatSize(size) + ") 📎]");
+                
+                // Receivers create the file now and fill it as chunks arrive
+                room.broadcast(new Frame(room.sender(username), System.currentTimeMillis(), TYPE_FILE_BEGIN, payload,
+                    "TEXT:📎 shared a file: " + name + " (" + formatSize(size) + ")"));
+            } else if (!transfer.owner.equals(username)) {
+                // Someone else's id
+                replyOffset(transferId, -1);
+                return;
+            }
+            
+            // Tell the sender where to continue (0 for a new transfer)
+            transfer.lastActivity = System.currentTimeMillis();
+            replyOffset(transferId, transfer.received);
+        }
+        
+        /**
+         * Relay one chunk as it arrives: id (8) | offset (8) | bytes
+         */
+        private void relayChunk(byte[] payload) {
+            if (payload.length < 16) {
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(payload);
+            long transferId = data.getLong();
+            long offset = data.getLong();
+            int length = data.remaining();
+            
+            // Only the owner may continue a transfer, and only where it stopped
+            Transfer transfer = transfers.get(transferId);
+            if (transfer == null || !transfer.owner.equals(username) || offset != transfer.received
+                    || offset + length > transfer.size) {
+                return;
+            }
+            transfer.received += length;
+            transfer.lastActivity = System.currentTimeMillis();
+            
+            transfer.room.broadcast(new Frame(transfer.room.sender(username), System.currentTimeMillis(), TYPE_FILE_CHUNK, payload));
+            
+            if (transfer.received == transfer.size) {
+                transfers.remove(transferId);
+                events.info(username + ": [sent file " + transfer.name + " 📎]");
+            }
+        }
+        
+        private void replyOffset(long transferId, long offset) {
+            ByteBuffer reply = ByteBuffer.allocate(16).putLong(transferId).putLong(offset);
+            send(new Frame("SERVER", System.currentTimeMillis(), TYPE_FILE_OFFSET, reply.array()));
+        }
+        
+        /**
+         * Add to list and the default room, and tell everyone the user has joined
+         * (a resumed session rejoins its rooms quietly and only catches up on what it missed)
+         */
+        private void join(String name, String resume) throws IOException {
+            username = userName(name);
+            sharedLimits = userLimits(username);
+            clientHandlers.put(id, this);
+            current = enterRoom(DEFAULT_ROOM, this);
+            joined.put(DEFAULT_ROOM, current);
+            long afterSeq = resume != null ? restore(resume) : -1;
+            
+            // Live messages after the mark wait until the history before it is queued
+            outbound.hold();
+            long end = messageLog.mark(this);
+            if (!username.equals(name)) {
+                notice("Your name is too long, you are " + username + " here");
+            }
+            
+            if (afterSeq >= 0 && afterSeq <= end) {
+                // No full replay and no announcement: after a server restart every client comes
+                // back at once, and each of them would otherwise cost a history read and a broadcast
+                session = true;
+                catchUpSeq = afterSeq;
+                catchUpEnd = end;
+                droppedBefore = outbound.dropped();
+                catchingUp = true;
+                pageRunning.set(true);
+                offload(this::catchUp);
+                return;
+            }
+            
+            events.info("✅ " + username + " (#" + id + ") has joined!");
+            
+            offload(() -> {
+                // Catch up on what was said before
+                replay(0, 0, historySize, end);
+                releaseHeld();
+                
+                // Notify everyone that a new user has joined (with whoever else joined meanwhile)
+                current.arrived(username, "joined the chat! 👋");
+            });
+        }
+        
+        /**
+         * Rejoin the rooms of a resume token "<log id>.<current room>,<room>...:<seq>"
+         * Returns the seq to catch up from, or -1 when the token is from another log (or broken)
+         */
+        private long restore(String resume) {
+            int dot = resume.indexOf('.');
+            int colon = resume.lastIndexOf(':');
+            if (dot < 0 || colon < dot) {
+                return -1;
+            }
+            
+            long seq;
+            try {
+                seq = Long.parseLong(resume.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            
+            String[] names = resume.substring(dot + 1, colon).split(",");
+            for (int i = 0; i < names.length; i++) {
+                String roomName = roomName(names[i]);
+                if (roomName == null) {
+                    continue;
+                }
+                Room room = joined.get(roomName);
+                if (room == null) {
+                    room = enterRoom(roomName, this);
+                    joined.put(roomName, room);
+                }
+                if (i == 0) {
+                    current = room;
+                }
+            }
+            return resume.substring(0, dot).equals(messageLog.id) ? seq : -1;
+        }
+        
+        /**
+         * Remove from list and all rooms, and tell their members the user has left
+         */
+        void leave() {
+            if (!clientHandlers.remove(id, this)) {
+                return;
+            }
+            releaseUserLimits(username);
+            
+            if (username != null) {
+                if (outbound.dropped() > 0) {
+                    events.info("🐢 " + username + " missed " + outbound.dropped() + " messages (slow connection)");
+                }
+                events.info("❌ " + username + " has left the chat!");
+            }
+            
+            for (Room room : joined.values()) {
+                exitRoom(room, this);
+                room.arrived(username, "left the chat! 👋");
+            }
+            joined.clear();
+        }
+    }
+    
+    /**
+     * ClientHandler class - Separate thread for each client
+     * (plus a writer thread that drains its outbound queue)
+     */
+    private static class ClientHandler extends Connection implements Runnable {
+        private Socket socket;
+        private Executor executor;
+        private OutputStream out;
+        private WireInput in;
+        
+        public ClientHandler(Socket socket, Executor executor) {
+            this.socket = socket;
+            this.executor = executor;
+        }
+        
+        @Override
+        void onQueued() {
+            // Writer thread is waiting on the queue
+        }
+        
+        @Override
+        void disconnect() {
+            try {
+                // Reader thread fails and runs closeConnection
+                socket.close();
+            } catch (IOException e) {
+                events.error("❌ Close Error: " + e.getMessage());
+            }
+        }
+        
+        @Override
+        void throttle(long nanos) {
+            // Blocking the reader leaves the rest in the socket buffer, so TCP slows the client down
+            long deadline = System.nanoTime() + nanos;
+            for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(left);
+            }
+        }
+        
+        @Override
+        void offload(Blocking work) throws IOException {
+            // The reader thread may block
+            work.run();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                // Setup input/output streams
+                in = new WireInput(socket.getInputStream());
+                out = socket.getOutputStream();
+                
+                // Start writer thread
+                executor.execute(this::writeLoop);
+                
+                // Receive handshake and messages from client
+                while (true) {
+                    if (binary) {
+                        int type = in.read();
+                        if (type < 0 || !handleFrame(type, in.readPayload())) {
+                            break;
+                        }
+                    } else {
+                        String message = in.readLine();
+                        if (message == null || !handleLine(message)) {
+                            break;
+                        }
+                    }
+                }
+                
+            } catch (IOException e) {
+                events.error("❌ Client Handler Error: " + e.getMessage());
+            } finally {
+                // Cleanup when closing connection
+                closeConnection();
+            }
+        }
+        
+        /**
+         * Write queued frames, coalescing small ones into one socket write
+         */
+        private void writeLoop() {
+            List<Frame> batch = new ArrayList<>();
+            byte[] buffer = new byte[WRITE_BATCH_SIZE];
+            
+            try {
+                while (outbound.take(batch)) {
+                    checkpoint(batch);
+                    
+                    // One format for the whole batch (the reader may switch on compression meanwhile)
+                    int format = format();
+                    int length = 0;
+                    for (Frame frame : batch) {
+                        ByteBuffer encoded = encode(frame, format);
+                        if (encoded == null) {
+                            continue;
+                        }
+                        int frameLength = encoded.remaining();
+                        metrics.sent(frame.type, frameLength);
+                        if (length + frameLength > buffer.length) {
+                            out.write(buffer, 0, length);
+                            length = 0;
+                        }
+                        if (frameLength > buffer.length) {
+                            // Large frame (image), write the shared bytes directly
+                            frame.writeTo(out, format);
+                        } else {
+                            frame.copyTo(buffer, length, format);
+                            length += frameLength;
+                        }
+                    }
+                    if (length > 0) {
+                        out.write(buffer, 0, length);
+                    }
+                    batch.clear();
+                    
+                    // A resume catch-up reads its next page once the last one is written
+                    if (nextPageDue()) {
+                        catchUp();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                disconnect();
+            }
+        }
+        
+        /**
+         * Close connection and cleanup resources
+         */
+        private void closeConnection() {
+            try {
+                // Remove from list and stop writer
+                leave();
+                outbound.close();
+                
+                // Close resources
+                if (in != null) in.close();
+                if (out != null) out.close();
+                if (socket != null) socket.close();
+                
+            } catch (IOException e) {
+                events.error("❌ Close Error: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * WireInput class - Unsynchronized reader for text lines and binary frames
+     * (a BufferedReader would swallow the binary bytes that follow the handshake)
+     */
+    private static class WireInput {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        
+        WireInput(InputStream in) {
+            this.in = in;
+        }
+        
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            limit = in.read(buffer);
+            position = 0;
+            return limit > 0;
+        }
+        
+        int read() throws IOException {
+            return fill() ? buffer[position++] & 0xFF : -1;
+        }
+        
+        /**
+         * Next line without its line ending, or null at end of stream
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = null;
+            while (fill()) {
+                int start = position;
+                while (position < limit) {
+                    if (buffer[position++] == '\n') {
+                        if (line == null) {
+                            return decodeLine(buffer, start, position - 1 - start);
+                        }
+                        line.write(buffer, start, position - 1 - start);
+                        return decodeLine(line.toByteArray(), 0, line.size());
+                    }
+                }
+                
+                // No line end in the buffer yet
+                if (line == null) {
+                    line = new ByteArrayOutputStream(2 * buffer.length);
+                }
+                if (line.size() + limit - start > maxLineLength) {
+                    metrics.oversized.increment();
+                    throw new IOException("Line too long");
+                }
+                line.write(buffer, start, limit - start);
+            }
+            return line == null ? null : decodeLine(line.toByteArray(), 0, line.size());
+        }
+        
+        /**
+         * Length and payload of a binary frame (after its type byte)
+         */
+        byte[] readPayload() throws IOException {
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                length = (length << 8) | b;
+            }
+            if (length < 0 || length > maxFrameSize) {
+                metrics.oversized.increment();
+                throw new IOException("Frame too large: " + length);
+            }
+            
+            byte[] payload = new byte[length];
+            int filled = 0;
+            while (filled < length) {
+                if (!fill()) {
+                    throw new EOFException();
+                }
+                int count = Math.min(length - filled, limit - position);
+                System.arraycopy(buffer, position, payload, filled, count);
+                position += count;
+                filled += count;
+            }
+            return payload;
+        }
+        
+        void close() throws IOException {
+            in.close();
+        }
+    }
+    
+    /**
+     * Reactor class - One selector thread serving many non-blocking connections
+     */
+    private static class Reactor extends Thread {
+        private final Selector selector;
+        
+        // Work handed over from other threads (registrations, flushes)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        
+        // Read buffer and write batch shared by all connections of this reactor
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final List<Frame> batch = new ArrayList<>();
+        
+        // Connections whose reads are paused by their rate limits (reactor thread only)
+        private final List<NioConnection> throttled = new ArrayList<>();
+        
+        Reactor(int index) throws IOException {
+            super("reactor-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+        
+        /**
+         * Run a task on this reactor thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    
+                    // Write anything broadcast before the channel was registered
+                    connection.flush();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+        
+        /**
+         * Resume reading of connections whose pause is over
+         * Returns millis until the next one is due (0 = none paused)
+         */
+        private long resumeThrottled() {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            List<NioConnection> due = null;
+            Iterator<NioConnection> it = throttled.iterator();
+            while (it.hasNext()) {
+                NioConnection connection = it.next();
+                long left = connection.resumeAt - now;
+                if (left <= 0) {
+                    it.remove();
+                    if (due == null) {
+                        due = new ArrayList<>();
+                    }
+                    due.add(connection);
+                } else {
+                    next = Math.min(next, left);
+                }
+            }
+            
+            // Resumed connections handle the bytes they kept, which may pause them again
+            if (due != null) {
+                for (NioConnection connection : due) {
+                    connection.resume();
+                    if (connection.paused) {
+                        next = Math.min(next, connection.resumeAt - now);
+                    }
+                }
+            }
+            return next == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(Math.max(0, next)) + 1;
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(throttled.isEmpty() ? 0 : resumeThrottled());
+                    
+                    // Handle ready channels
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            // A broken client must not stop the reactor
+                            events.error("❌ Client Error: " + e);
+                            connection.close();
+                        }
+                    }
+                    
+                    // Run queued tasks (writes produced while reading are batched here)
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // Same for a failed task (a flush that could not encode a frame)
+                            events.error("❌ Reactor Task Error: " + e);
+                        }
+                    }
+                    
+                } catch (IOException e) {
+                    events.error("❌ Reactor Error: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * NioConnection class - A client served by a reactor thread
+     */
+    private static class NioConnection extends Connection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private SelectionKey key;
+        
+        // Encoded frames taken from the outbound queue but not fully written yet
+        private ByteBuffer[] pending;
+        
+        // Reads paused by the rate limits until resumeAt (System.nanoTime)
+        private boolean paused;
+        private long resumeAt;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        // Reads paused while a worker runs blocking work, and bytes read after the frame that started it
+        private boolean waiting;
+        private byte[] unread;
+        
+        // Bytes of an incomplete line or frame header (allocated only while split across reads)
+        private byte[] partial;
+        private int partialLength;
+        
+        // Binary frame being received
+        private int frameType;
+        private byte[] payload;
+        private int payloadLength;
+        
+        NioConnection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+        
+        @Override
+        void onQueued() {
+            // Let the reactor write it (only one pending flush per connection)
+            if (!closed.get() && flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(this::flush);
+            }
+        }
+        
+        @Override
+        void disconnect() {
+            reactor.execute(this::close);
+        }
+        
+        @Override
+        void throttle(long nanos) {
+            // Called while reading: stop selecting for reads, the reactor resumes them
+            resumeAt = Math.max(resumeAt, System.nanoTime() + nanos);
+            if (!paused) {
+                paused = true;
+                reactor.throttled.add(this);
+                interest();
+            }
+        }
+        
+        /**
+         * Pause is over (on the reactor thread): handle the bytes read after the frame
+         * that paused, then read again
+         */
+        void resume() {
+            paused = false;
+            if (!waiting) {
+                readOn();
+            }
+        }
+        
+        @Override
+        void offload(Blocking work) {
+            // Stop reading until it is done; the reactor goes on with other clients
+            waiting = true;
+            interest();
+            workers.execute(() -> {
+                Runnable next = this::proceed;
+                try {
+                    work.run();
+                } catch (IOException e) {
+                    next = this::close;
+                } catch (RuntimeException e) {
+                    events.error("❌ Client Error: " + e);
+                    next = this::close;
+                }
+                reactor.execute(next);
+            });
+        }
+        
+        /**
+         * Blocking work is done (on the reactor thread): handle the bytes read with its frame,
+         * then read again
+         */
+        private void proceed() {
+            waiting = false;
+            readOn();
+        }
+        
+        /**
+         * Handle the bytes kept back, unless the rate limits still pause reading, then read again
+         */
+        private void readOn() {
+            if (closed.get()) {
+                return;
+            }
+            
+            try {
+                if (!paused && unread != null) {
+                    byte[] data = unread;
+                    unread = null;
+                    consume(data, 0, data.length);
+                }
+                interest();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                events.error("❌ Client Error: " + e);
+                close();
+            }
+        }
+        
+        /**
+         * Select for reads unless paused or waiting, and for writes while a batch is only partly written
+         */
+        private void interest() {
+            if (key != null && key.isValid()) {
+                key.interestOps((paused || waiting ? 0 : SelectionKey.OP_READ) | (pending != null ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+        
+        /**
+         * Read available bytes and handle every complete line or frame
+         */
+        void onReadable(ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    close();
+                    return;
+                }
+                
+                consume(buffer.array(), 0, count);
+                
+            } catch (IOException e) {
+                close();
+            }
+        }
+        
+        /**
+         * Handle every complete line or frame in data, up to the first one that waits for
+         * a worker or goes over the rate limits
+         */
+        private void consume(byte[] data, int offset, int count) throws IOException {
+            // The handshake line may be followed by binary frames in the same read
+            while (offset < count && !waiting && !paused) {
+                offset = binary ? consumeFrame(data, offset, count) : consumeLine(data, offset, count);
+                if (offset < 0) {
+                    close();
+                    return;
+                }
+            }
+            
+            if (offset < count) {
+                // The read buffer is shared, keep the rest until the worker is done or the pause is over
+                unread = Arrays.copyOfRange(data, offset, count);
+            }
+        }
+        
+        /**
+         * Consume bytes up to the next line end; returns the new offset or -1 to close
+         */
+        private int consumeLine(byte[] data, int offset, int count) throws IOException {
+            for (int i = offset; i < count; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                
+                String line;
+                if (partial == null) {
+                    line = decodeLine(data, offset, i - offset);
+                } else {
+                    appendPartial(data, offset, i - offset);
+                    line = decodeLine(partial, 0, partialLength);
+                    partial = null;
+                    partialLength = 0;
+                }
+                return handleLine(line) ? i + 1 : -1;
+            }
+            
+            // Keep the rest until the newline arrives
+            if (partialLength + count - offset > maxLineLength) {
+                metrics.oversized.increment();
+                return -1;
+            }
+            appendPartial(data, offset, count - offset);
+            return count;
+        }
+        
+        /**
+         * Consume bytes of a binary frame; returns the new offset or -1 to close
+         */
+        private int consumeFrame(byte[] data, int offset, int count) throws IOException {
+            // Header first (type + length)
+            if (payload == null) {
+                int needed = Math.min(5 - partialLength, count - offset);
+                appendPartial(data, offset, needed);
+                offset += needed;
+                if (partialLength < 5) {
+                    return offset;
+                }
+                
+                frameType = partial[0] & 0xFF;
+                int length = ByteBuffer.wrap(partial, 1, 4).getInt();
+                partial = null;
+                partialLength = 0;
+                if (length < 0 || length > maxFrameSize) {
+                    metrics.oversized.increment();
+                    return -1;
+                }
+                payload = new byte[length];
+                payloadLength = 0;
+            }
+            
+            // Then the payload straight into its own array
+            int available = Math.min(payload.length - payloadLength, count - offset);
+            System.arraycopy(data, offset, payload, payloadLength, available);
+            payloadLength += available;
+            offset += available;
+            
+            if (payloadLength == payload.length) {
+                byte[] complete = payload;
+                payload = null;
+                if (!handleFrame(frameType, complete)) {
+                    return -1;
+                }
+            }
+            return offset;
+        }
+        
+        private void appendPartial(byte[] data, int offset, int length) {
+            if (partial == null) {
+                partial = new byte[Math.max(256, length)];
+            } else if (partialLength + length > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+            }
+            System.arraycopy(data, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+        
+        /**
+         * Write queued frames with one gathering write per batch (runs on the reactor thread)
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            
+            try {
+                while (true) {
+                    if (pending == null) {
+                        // Take everything queued so far
+                        List<Frame> batch = reactor.batch;
+                        outbound.drainTo(batch);
+                        if (batch.isEmpty()) {
+                            break;
+                        }
+                        checkpoint(batch);
+                        int format = format();
+                        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                        int count = 0;
+                        for (Frame frame : batch) {
+                            ByteBuffer buffer = encode(frame, format);
+                            if (buffer != null) {
+                                buffers[count++] = buffer;
+                                metrics.sent(frame.type, buffer.remaining());
+                            }
+                        }
+                        batch.clear();
+                        if (count == 0) {
+                            continue;
+                        }
+                        pending = count == buffers.length ? buffers : Arrays.copyOf(buffers, count);
+                    }
+                    
+                    channel.write(pending);
+                    if (pending[pending.length - 1].hasRemaining()) {
+                        // Socket buffer is full, continue when writable
+                        interest();
+                        return;
+                    }
+                    pending = null;
+                }
+                interest();
+                
+                // A resume catch-up reads its next page (on a worker) once the last one is written
+                if (nextPageDue()) {
+                    workers.execute(this::catchUp);
+                }
+                
+            } catch (IOException e) {
+                close();
+            }
+        }
+        
+        /**
+         * Close channel and cleanup (only once)
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                events.error("❌ Close Error: " + e.getMessage());
+            }
+            
+            pending = null;
+            unread = null;
+            leave();
+            outbound.close();
         }
     }
 }
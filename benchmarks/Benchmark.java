@@ -0,0 +1,494 @@
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark - Throughput of server fan-out, wire framing, client rendering and image encoding
+ *
+ * Runs headless (no display needed), so it works on a CI Linux box:
+ *   mvn -B -Pbench verify
+ *   mvn -B -Pbench verify -Dbench.args="fanOut --iterations=10"
+ *
+ * Each benchmark is warmed up, then measured for a number of timed iterations
+ * and reported as operations per second (mean ± standard deviation).
+ */
+public class Benchmark {
+    // Frame types, as on the wire
+    private static final int TYPE_TEXT = 1;
+    private static final int TYPE_IMAGE = 2;
+    
+    // Recipients per room for the fan-out benchmarks
+    private static final int[] RECIPIENTS = {10, 100, 1000, 10000};
+    
+    // Width of the chat list in the rendering benchmarks
+    private static final int CHAT_WIDTH = 560;
+    
+    // Results are folded into this so the JIT cannot drop the measured work
+    private static volatile long sink;
+    
+    private static int warmupIterations = 3;
+    private static int measureIterations = 5;
+    private static long iterationMillis = 1000;
+    
+    public static void main(String[] args) throws Exception {
+        // Rendering needs no display unless one is asked for
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        
+        Pattern filter = null;
+        for (String arg : args) {
+            if (arg.startsWith("--warmup=")) {
+                warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                measureIterations = Math.max(1, Integer.parseInt(arg.substring("--iterations=".length())));
+            } else if (arg.startsWith("--time=")) {
+                iterationMillis = Long.parseLong(arg.substring("--time=".length()));
+            } else if (!arg.isEmpty()) {
+                filter = Pattern.compile(arg);
+            }
+        }
+        
+        System.out.println("⏱️ " + warmupIterations + " warmup + " + measureIterations + " measured iterations of "
+            + iterationMillis + " ms, Java " + System.getProperty("java.version")
+            + ", headless=" + System.getProperty("java.awt.headless"));
+        System.out.println();
+        System.out.println(String.format("%-26s %8s %14s   %-12s %s", "Benchmark", "(param)", "Score", "Error", "Units"));
+        
+        // Rendered images are cached like on a real client, but not in the user's own cache
+        Path mediaDir = Files.createTempDirectory("chat-bench-media");
+        System.setProperty("chat.media-cache", mediaDir.toString());
+        
+        // Chat messages go through the message log like on a real server
+        Path logDir = Files.createTempDirectory("chat-bench-log");
+        Server.messageLog = new Server.MessageLog(logDir);
+        Thread logThread = new Thread(Server.messageLog, "message-log");
+        logThread.setDaemon(true);
+        logThread.start();
+        
+        try {
+            List<Case> cases = new ArrayList<>();
+            FanOut.add(cases);
+            Framing.add(cases);
+            Rendering.add(cases);
+            Sending.add(cases);
+            
+            for (Case c : cases) {
+                if (filter == null || filter.matcher(c.name).find()) {
+                    run(c);
+                }
+            }
+        } finally {
+            delete(logDir);
+            delete(mediaDir);
+        }
+        
+        System.out.println();
+        System.out.println("✅ Done (" + (sink & 1) + ")");
+    }
+    
+    /**
+     * Remove a temporary directory and everything in it
+     */
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    /**
+     * Warm up, measure and print one benchmark
+     */
+    private static void run(Case c) throws Exception {
+        c.setup();
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                c.iteration(iterationMillis);
+            }
+            
+            double[] scores = new double[measureIterations];
+            for (int i = 0; i < measureIterations; i++) {
+                long start = System.nanoTime();
+                long ops = c.iteration(iterationMillis);
+                scores[i] = ops * c.unitsPerOp * 1e9 / (System.nanoTime() - start);
+            }
+            
+            double mean = 0;
+            for (double score : scores) {
+                mean += score;
+            }
+            mean /= scores.length;
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean);
+            }
+            double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+            
+            System.out.println(String.format("%-26s %8s %14.1f ± %-12.1f %s",
+                c.name, c.param, mean, error, c.units));
+        } finally {
+            c.tearDown();
+        }
+    }
+    
+    /**
+     * Case class - One benchmark with one parameter value
+     */
+    private abstract static class Case {
+        final String name;
+        final String param;
+        final String units;
+        final int unitsPerOp;
+        
+        Case(String name, String param, String units, int unitsPerOp) {
+            this.name = name;
+            this.param = param;
+            this.units = units;
+            this.unitsPerOp = unitsPerOp;
+        }
+        
+        Case(String name, String param) {
+            this(name, param, "ops/s", 1);
+        }
+        
+        void setup() throws Exception {
+        }
+        
+        void tearDown() throws Exception {
+        }
+        
+        /**
+         * Run operations until the time is up and return how many ran
+         */
+        long iteration(long millis) throws Exception {
+            long deadline = System.nanoTime() + millis * 1_000_000;
+            long ops = 0;
+            do {
+                for (int i = 0; i < 16; i++) {
+                    sink += op();
+                }
+                ops += 16;
+            } while (System.nanoTime() < deadline);
+            return ops;
+        }
+        
+        abstract long op() throws Exception;
+    }
+    
+    /**
+     * FanOut class - One room message queued for every member and taken by their writers
+     */
+    private static class FanOut {
+        static void add(List<Case> cases) {
+            for (int recipients : RECIPIENTS) {
+                cases.add(new Room("fanOut.text", recipients, false, "ops/s", 1));
+                cases.add(new Room("fanOut.image", recipients, true, "ops/s", 1));
+                
+                // Same work as fanOut.text, counted per recipient
+                cases.add(new Room("fanOut.deliveries", recipients, false, "msgs/s", recipients));
+            }
+        }
+        
+        /**
+         * Room class - A room whose members are connections without a socket
+         */
+        static class Room extends Case {
+            private final int recipients;
+            private final boolean image;
+            private final byte[] thumbnail = Framing.image(160, 120);
+            private Server.Room room;
+            private final List<Server.Frame> batch = new ArrayList<>();
+            
+            Room(String name, int recipients, boolean image, String units, int unitsPerOp) {
+                super(name, String.valueOf(recipients), units, unitsPerOp);
+                this.recipients = recipients;
+                this.image = image;
+            }
+            
+            @Override
+            void setup() {
+                room = new Server.Room("bench");
+                for (int i = 0; i < recipients; i++) {
+                    // Text, binary and compressing clients in turn
+                    Member member = new Member(i % 3);
+                    room.members.add(member);
+                }
+            }
+            
+            @Override
+            long op() {
+                Server.Frame frame;
+                if (image) {
+                    ByteBuffer reference = ByteBuffer.allocate(40 + thumbnail.length);
+                    reference.put(new byte[32]).putLong(thumbnail.length).put(thumbnail);
+                    frame = Server.Frame.image("alice", System.currentTimeMillis(), reference.array(), thumbnail, null);
+                } else {
+                    frame = new Server.Frame("alice", System.currentTimeMillis(), "TEXT:Hello everyone, how is it going?");
+                }
+                room.deliver(frame);
+                
+                // Each member's writer takes the frame and its shared encoding
+                long bytes = 0;
+                for (Server.Connection member : room.members) {
+                    member.outbound.drainTo(batch);
+                    for (Server.Frame queued : batch) {
+                        bytes += queued.length(member.format());
+                    }
+                    batch.clear();
+                }
+                return bytes;
+            }
+        }
+        
+        /**
+         * Member class - Client of any wire format that only queues
+         */
+        static class Member extends Server.Connection {
+            Member(int format) {
+                this.binary = format != Server.TEXT_FORMAT;
+                this.deflate = format == Server.DEFLATE_FORMAT;
+                this.username = "user" + id;
+                this.historyEnd = 0;
+            }
+            
+            @Override
+            void onQueued() {
+            }
+            
+            @Override
+            void disconnect() {
+            }
+            
+            @Override
+            void throttle(long nanos) {
+            }
+            
+            @Override
+            void offload(Blocking work) throws IOException {
+                work.run();
+            }
+        }
+    }
+    
+    /**
+     * Framing class - Encoding messages for every wire format and decoding what arrives
+     */
+    private static class Framing {
+        static void add(List<Case> cases) {
+            String text = "TEXT:Hello everyone, how is it going?";
+            String image = "IMAGE:" + Base64.getEncoder().encodeToString(image(400, 300));
+            
+            cases.add(new Encode("encode.text", "text", text, Server.TEXT_FORMAT));
+            cases.add(new Encode("encode.text", "binary", text, Server.BINARY_FORMAT));
+            cases.add(new Encode("encode.text", "deflate", text, Server.DEFLATE_FORMAT));
+            cases.add(new Encode("encode.image", "text", image, Server.TEXT_FORMAT));
+            cases.add(new Encode("encode.image", "binary", image, Server.BINARY_FORMAT));
+            cases.add(new Encode("encode.image", "deflate", image, Server.DEFLATE_FORMAT));
+            
+            cases.add(new DecodeLine("decode.text", "text", text));
+            cases.add(new DecodeFrame("decode.text", "binary", text));
+            cases.add(new DecodeLine("decode.image", "text", image));
+            cases.add(new DecodeFrame("decode.image", "binary", image));
+        }
+        
+        /**
+         * A photo-like JPEG (gradient with noise), so sizes are realistic
+         */
+        static byte[] image(int width, int height) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(42);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int noise = random.nextInt(32);
+                    image.setRGB(x, y, new Color((x * 200 / width + noise) % 256, (y * 200 / height + noise) % 256, 128).getRGB());
+                }
+            }
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillOval(width / 4, height / 4, width / 2, height / 2);
+            g.dispose();
+            
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "jpg", out);
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * Encode class - A new message encoded once for one wire format
+         */
+        static class Encode extends Case {
+            private final String message;
+            private final int format;
+            
+            Encode(String name, String label, String message, int format) {
+                super(name, label);
+                this.message = message;
+                this.format = format;
+            }
+            
+            @Override
+            long op() {
+                return new Server.Frame("alice", System.currentTimeMillis(), message).length(format);
+            }
+        }
+        
+        /**
+         * DecodeLine class - A received text line split off and its body decoded
+         */
+        static class DecodeLine extends Case {
+            private final byte[] line;
+            
+            DecodeLine(String name, String format, String message) {
+                super(name, format);
+                ByteBuffer encoded = new Server.Frame("alice", System.currentTimeMillis(), message).buffer(Server.TEXT_FORMAT);
+                this.line = new byte[encoded.remaining()];
+                encoded.get(line);
+            }
+            
+            @Override
+            long op() {
+                String text = Server.decodeLine(line, 0, line.length - 1);
+                String message = text.substring(text.indexOf("]: ") + 3);
+                if (message.startsWith("IMAGE:")) {
+                    return Server.Frame.decodeBase64(message.substring(6)).length;
+                }
+                return message.substring(5).getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        
+        /**
+         * DecodeFrame class - A received binary frame parsed back into a message
+         */
+        static class DecodeFrame extends Case {
+            private final byte[] frame;
+            
+            DecodeFrame(String name, String format, String message) {
+                super(name, format);
+                ByteBuffer encoded = new Server.Frame("alice", System.currentTimeMillis(), message).buffer(Server.BINARY_FORMAT);
+                this.frame = new byte[encoded.remaining()];
+                encoded.get(frame);
+            }
+            
+            @Override
+            long op() throws IOException {
+                return Server.Frame.decode(frame).length(Server.BINARY_FORMAT);
+            }
+        }
+    }
+    
+    /**
+     * Rendering class - Messages added to the client's chat list and laid out
+     */
+    private static class Rendering {
+        static void add(List<Case> cases) {
+            cases.add(new Insert("render.text", "alice", TYPE_TEXT,
+                "Hello everyone, how is it going?".getBytes(StandardCharsets.UTF_8)));
+            cases.add(new Insert("render.server", "SERVER", TYPE_TEXT,
+                "carol joined the chat! 👋".getBytes(StandardCharsets.UTF_8)));
+            cases.add(new Insert("render.image", "alice", TYPE_IMAGE, Framing.image(160, 120)));
+        }
+        
+        /**
+         * Insert class - Builds a row and adds it, all on the event dispatch thread (the client builds rows on its decoder thread)
+         */
+        static class Insert extends Case {
+            private final int type;
+            private final byte[] body;
+            private final String sender;
+            private Client.ChatView view;
+            
+            Insert(String name, String sender, int type, byte[] body) {
+                super(name, "-");
+                this.sender = sender;
+                this.type = type;
+                this.body = body;
+            }
+            
+            @Override
+            void setup() throws Exception {
+                SwingUtilities.invokeAndWait(() -> {
+                    view = new Client.ChatView("bob");
+                    view.list.setSize(CHAT_WIDTH, 400);
+                });
+            }
+            
+            @Override
+            long iteration(long millis) throws Exception {
+                long[] ops = new long[1];
+                Exception[] failure = new Exception[1];
+                SwingUtilities.invokeAndWait(() -> {
+                    try {
+                        ops[0] = super.iteration(millis);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                return ops[0];
+            }
+            
+            @Override
+            long op() {
+                // The list keeps a bounded number of rows, so this runs at its steady state
+                view.add(Client.ChatView.frameRow(type, sender, "14:30", body));
+                int last = view.size() - 1;
+                return view.list.getCellBounds(last, last).height;
+            }
+        }
+    }
+    
+    /**
+     * Sending class - Picked photos scaled and encoded before they are sent
+     */
+    private static class Sending {
+        static void add(List<Case> cases) {
+            cases.add(new Encode("send.image", 1600, 1200));
+            cases.add(new Encode("send.image", 4000, 3000));
+        }
+        
+        static class Encode extends Case {
+            private final int width;
+            private final int height;
+            private final Client.ImageEncoder encoder = new Client.ImageEncoder();
+            private byte[] photo;
+            
+            Encode(String name, int width, int height) {
+                super(name, width + "x" + height);
+                this.width = width;
+                this.height = height;
+            }
+            
+            @Override
+            void setup() {
+                photo = Framing.image(width, height);
+            }
+            
+            @Override
+            long op() throws IOException {
+                return encoder.encode(photo).length;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * CompressionTest - Deflated text frames with the shared chat dictionary, both ways
+ */
+public class CompressionTest {
+    private static final byte[] MESSAGE = ("hello everyone, what's going on here? I think we should "
+        + "get the new build out today, see you all tomorrow 👋").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void roundTripWithTheDictionary() throws IOException {
+        byte[] deflated = Server.Compression.deflate(MESSAGE, 0, MESSAGE.length);
+        assertNotNull(deflated);
+        assertTrue("deflated to " + deflated.length, deflated.length < MESSAGE.length);
+
+        assertArrayEquals(MESSAGE, Server.Compression.inflate(deflated, MESSAGE.length));
+        assertArrayEquals(MESSAGE, Client.inflate(new Inflater(true), deflated));
+    }
+
+    @Test
+    public void onlyTheGivenRangeIsDeflated() throws IOException {
+        byte[] framed = new byte[MESSAGE.length + 10];
+        System.arraycopy(MESSAGE, 0, framed, 5, MESSAGE.length);
+        byte[] deflated = Server.Compression.deflate(framed, 5, MESSAGE.length);
+        assertArrayEquals(MESSAGE, Server.Compression.inflate(deflated, MESSAGE.length));
+    }
+
+    @Test
+    public void incompressibleIsNotDeflated() {
+        byte[] noise = new byte[1000];
+        new Random(42).nextBytes(noise);
+        assertNull(Server.Compression.deflate(noise, 0, noise.length));
+    }
+
+    @Test
+    public void inflatedSizeIsLimited() throws IOException {
+        // 16 MB of one byte deflates to a few KB
+        byte[] bomb = new byte[16 * 1024 * 1024];
+        Arrays.fill(bomb, (byte) 'a');
+        byte[] deflated = Server.Compression.deflate(bomb, 0, bomb.length);
+        assertTrue("deflated to " + deflated.length, deflated.length < 64 * 1024);
+
+        assertArrayEquals(bomb, Server.Compression.inflate(deflated, bomb.length));
+        try {
+            Server.Compression.inflate(deflated, 1024 * 1024);
+            fail("inflated past the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void brokenFramesAreRejected() throws IOException {
+        byte[] deflated = Server.Compression.deflate(MESSAGE, 0, MESSAGE.length);
+        expectFailure(Arrays.copyOf(deflated, deflated.length / 2), "Truncated");
+
+        // Not deflate at all (block type 3 does not exist)
+        expectFailure(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff}, "Bad");
+    }
+
+    private static void expectFailure(byte[] deflated, String message) {
+        try {
+            Server.Compression.inflate(deflated, 1024 * 1024);
+            fail("inflated a broken frame");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
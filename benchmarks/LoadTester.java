@@ -0,0 +1,766 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadTester - Headless load generator that speaks the client protocol
+ *
+ * Connects many simulated users to a running Server, sends text and images at fixed
+ * rates and measures end-to-end delivery latency (send -> every member received it):
+ *   java Server --mode=nio
+ *   mvn -B -Pload verify -Dload.args="--users=2000 --rate=200 --image-rate=2 --duration=60"
+ *
+ * Every user's socket is read by a few selector threads, so thousands of users fit in
+ * one JVM. Messages carry their send time (texts in the body, images by content hash).
+ * --protocol=deflate also asks for compressed text frames (see the server's
+ * chat_deflate_* metrics for what it saved and cost).
+ * --presence also asks for online/typing updates, and every text's sender types for
+ * TYPING_LEAD_SECONDS first, to see what presence costs next to the messages.
+ * The server rate limits every user (--max-messages, --max-bytes-kb); start it with
+ * --max-messages=0 --max-bytes-kb=0 when one simulated user sends more than that.
+ */
+public class LoadTester {
+    // Binary protocol: type (1 byte) | length (4 bytes) | payload
+    private static final String BINARY_PROTOCOL = "binary/2";
+    private static final int TYPE_TEXT = 1;
+    private static final int TYPE_IMAGE = 2;
+    private static final int TYPE_QUIT = 3;
+    private static final int TYPE_MEDIA_REF = 7;
+    private static final int TYPE_COMPRESS = 10;
+    private static final int TYPE_TYPING = 13;
+    private static final int TYPE_PRESENCE = 14;
+    
+    // With --presence, a text's sender starts typing this long before it is sent
+    private static final double TYPING_LEAD_SECONDS = 2;
+    
+    private static final long REPORT_INTERVAL_MS = 5000;
+    
+    // Longest wait for the joins before the run starts anyway
+    private static final long JOIN_TIMEOUT_SECONDS = 15 * 60;
+    
+    // Server notice that a /join went through
+    private static final String JOINED_NOTICE = "Now talking in #";
+    
+    // Options
+    private static String host = "localhost";
+    private static int port = 5000;
+    private static int userCount = 100;
+    private static int roomCount = 1;
+    private static double textRate = 100;
+    private static double imageRate = 0;
+    private static int textSize = 64;
+    private static int imageSize = 50 * 1024;
+    private static int durationSeconds = 30;
+    private static int warmupSeconds = 5;
+    private static int connectRate = 200;
+    private static boolean binary = true;
+    private static boolean compress;
+    private static boolean presence;
+    private static int receiverCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    
+    // Marks this run's texts, so history replayed from earlier runs is not measured
+    private static final String MARKER = "lt:" + Long.toHexString(new Random().nextLong()) + ":";
+    
+    // Send time (System.nanoTime) of every image by the hex SHA-256 of its bytes
+    private static final Map<String, Long> sentImages = new ConcurrentHashMap<>();
+    
+    // Latency of messages sent after the warmup, and of the current report interval
+    private static final LatencyHistogram total = new LatencyHistogram();
+    private static volatile LatencyHistogram interval = new LatencyHistogram();
+    private static volatile long measureStart = Long.MAX_VALUE;
+    
+    private static final AtomicLong textsSent = new AtomicLong();
+    private static final AtomicLong imagesSent = new AtomicLong();
+    private static final AtomicLong expectedDeliveries = new AtomicLong();
+    private static final AtomicLong disconnects = new AtomicLong();
+    
+    // Bytes received after the warmup: chat messages (texts, images) and presence changes
+    private static final AtomicLong messageBytes = new AtomicLong();
+    private static final AtomicLong presenceBytes = new AtomicLong();
+    
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        
+        System.out.println("🚦 Load test: " + userCount + " users in " + roomCount + " room(s) on " + host + ":" + port
+            + " (" + (compress ? BINARY_PROTOCOL + " + deflate" : binary ? BINARY_PROTOCOL : "text")
+            + (presence ? " + presence" : "") + ")");
+        System.out.println("📤 " + textRate + " texts/s of " + textSize + " bytes, " + imageRate + " images/s of ~"
+            + imageSize / 1024 + " KB, " + warmupSeconds + " s warmup + " + durationSeconds + " s");
+        
+        Receiver[] receivers = new Receiver[receiverCount];
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = new Receiver(i);
+            receivers[i].start();
+        }
+        
+        // Connect at a steady rate so the server's accept backlog does not overflow
+        List<User> users = new ArrayList<>();
+        int[] roomSizes = new int[roomCount];
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < userCount; i++) {
+            pace(connectStart + (long) (i * 1e9 / connectRate));
+            User user = new User(i, roomCount > 1 ? "load-" + (i % roomCount) : null);
+            try {
+                user.connect();
+            } catch (IOException e) {
+                System.err.println("❌ User " + i + " could not connect: " + e.getMessage());
+                continue;
+            }
+            receivers[i % receivers.length].register(user);
+            users.add(user);
+            roomSizes[i % roomCount]++;
+        }
+        if (users.isEmpty()) {
+            System.err.println("❌ No user could connect");
+            return;
+        }
+        
+        // Give the server time to finish the joins (history replay, announcements): the run
+        // measures a chat of users who are all in, not one that is still filling up
+        long joinDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(JOIN_TIMEOUT_SECONDS);
+        int joining = 0;
+        for (User user : users) {
+            if (!user.awaitJoin(joinDeadline)) {
+                joining++;
+            }
+        }
+        double joinSeconds = (System.nanoTime() - connectStart) / 1e9;
+        Thread.sleep(1000);
+        System.out.println(String.format("✅ %d users connected and joined in %.1f s%s", users.size(), joinSeconds,
+            joining > 0 ? " (" + joining + " still joining)" : ""));
+        
+        byte[] image = imageRate > 0 ? image(imageSize) : null;
+        if (image != null) {
+            System.out.println("🖼️ Test image: " + image.length / 1024 + " KB");
+        }
+        
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS);
+        boolean measuring = warmupSeconds == 0;
+        long texts = 0;
+        long images = 0;
+        long lastReport = start;
+        
+        // Users typing their next text, in the order they will send it
+        ArrayDeque<User> typists = new ArrayDeque<>();
+        int typingLead = (int) Math.max(1, Math.round(textRate * TYPING_LEAD_SECONDS));
+        
+        // One thread paces all sends: the n-th text is due n / rate seconds after the start
+        while (true) {
+            long now = System.nanoTime();
+            if (!measuring && now >= measureStart) {
+                // Drop warmup counts (total only takes messages sent from now on)
+                textsSent.set(0);
+                imagesSent.set(0);
+                expectedDeliveries.set(0);
+                messageBytes.set(0);
+                presenceBytes.set(0);
+                measuring = true;
+            }
+            if (now >= end) {
+                break;
+            }
+            
+            if (now >= nextReport) {
+                LatencyHistogram recent = interval;
+                interval = new LatencyHistogram();
+                double seconds = (now - lastReport) / 1e9;
+                System.out.println(String.format("📊 %3d s  %8.0f deliveries/s  p50 %7.2f ms  p99 %7.2f ms  p99.9 %7.2f ms%s",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), recent.count() / seconds,
+                    recent.percentile(0.5), recent.percentile(0.99), recent.percentile(0.999),
+                    measuring ? "" : "  (warmup)"));
+                lastReport = now;
+                nextReport += TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS);
+                continue;
+            }
+            
+            long textDue = textRate > 0 ? start + (long) (texts * 1e9 / textRate) : Long.MAX_VALUE;
+            long imageDue = image != null ? start + (long) (images * 1e9 / imageRate) : Long.MAX_VALUE;
+            if (textDue > now && imageDue > now) {
+                pace(Math.min(Math.min(textDue, imageDue), nextReport));
+                continue;
+            }
+            
+            User sender = users.get(ThreadLocalRandom.current().nextInt(users.size()));
+            try {
+                if (textDue <= now && presence) {
+                    // Whoever sends in TYPING_LEAD_SECONDS starts typing now
+                    while (typists.size() < typingLead) {
+                        User typist = users.get(ThreadLocalRandom.current().nextInt(users.size()));
+                        typist.sendTyping();
+                        typists.add(typist);
+                    }
+                    sender = typists.poll();
+                }
+                int members = roomSizes[sender.index % roomCount];
+                if (textDue <= now) {
+                    texts++;
+                    sender.sendText(text(now));
+                    textsSent.incrementAndGet();
+                } else {
+                    images++;
+                    sender.sendImage(image);
+                    imagesSent.incrementAndGet();
+                }
+                expectedDeliveries.addAndGet(members);
+            } catch (IOException e) {
+                System.err.println("❌ " + sender.name + " could not send: " + e.getMessage());
+            }
+        }
+        
+        // Let the last messages arrive before reporting
+        Thread.sleep(2000);
+        report(users.size());
+        
+        for (User user : users) {
+            user.close();
+        }
+    }
+    
+    /**
+     * Parse command line options
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--users=")) {
+                userCount = Math.max(1, Integer.parseInt(arg.substring("--users=".length())));
+            } else if (arg.startsWith("--rooms=")) {
+                roomCount = Math.max(1, Integer.parseInt(arg.substring("--rooms=".length())));
+            } else if (arg.startsWith("--rate=")) {
+                textRate = Double.parseDouble(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--image-rate=")) {
+                imageRate = Double.parseDouble(arg.substring("--image-rate=".length()));
+            } else if (arg.startsWith("--text-size=")) {
+                textSize = Math.max(MARKER.length() + 20, Integer.parseInt(arg.substring("--text-size=".length())));
+            } else if (arg.startsWith("--image-size=")) {
+                imageSize = Integer.parseInt(arg.substring("--image-size=".length())) * 1024;
+            } else if (arg.startsWith("--duration=")) {
+                durationSeconds = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.startsWith("--warmup=")) {
+                warmupSeconds = Math.max(0, Integer.parseInt(arg.substring("--warmup=".length())));
+            } else if (arg.startsWith("--connect-rate=")) {
+                connectRate = Math.max(1, Integer.parseInt(arg.substring("--connect-rate=".length())));
+            } else if (arg.startsWith("--protocol=")) {
+                String protocol = arg.substring("--protocol=".length());
+                binary = !protocol.equals("text");
+                compress = protocol.equals("deflate");
+            } else if (arg.equals("--presence")) {
+                presence = true;
+            } else if (arg.startsWith("--receivers=")) {
+                receiverCount = Math.max(1, Integer.parseInt(arg.substring("--receivers=".length())));
+            } else if (!arg.isEmpty()) {
+                System.err.println("⚠️ Unknown option: " + arg);
+            }
+        }
+    }
+    
+    /**
+     * Final summary of the measured part of the run
+     */
+    private static void report(int connected) {
+        LatencyHistogram latency = total;
+        long delivered = latency.count();
+        long expected = expectedDeliveries.get();
+        
+        System.out.println();
+        System.out.println("📈 Results (" + durationSeconds + " s, " + connected + " users)");
+        System.out.println(String.format("   Sent:       %d texts (%.1f/s), %d images (%.1f/s)",
+            textsSent.get(), textsSent.get() / (double) durationSeconds,
+            imagesSent.get(), imagesSent.get() / (double) durationSeconds));
+        System.out.println(String.format("   Delivered:  %d of %d expected (%.2f%% missing), %d disconnects",
+            delivered, expected, expected == 0 ? 0 : Math.max(0, expected - delivered) * 100.0 / expected, disconnects.get()));
+        System.out.println(String.format("   Throughput: %.0f deliveries/s", delivered / (double) durationSeconds));
+        System.out.println(String.format("   Latency:    p50 %.2f ms  p90 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms",
+            latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+            latency.percentile(0.999), latency.percentile(1.0)));
+        if (presence) {
+            System.out.println(String.format("   Presence:   %.1f KB received, %.2f%% of the %.1f KB of messages",
+                presenceBytes.get() / 1024.0, messageBytes.get() == 0 ? 0 : presenceBytes.get() * 100.0 / messageBytes.get(),
+                messageBytes.get() / 1024.0));
+        }
+    }
+    
+    /**
+     * Record one delivery sent at the given System.nanoTime
+     */
+    private static void delivered(long sentNanos) {
+        long latency = System.nanoTime() - sentNanos;
+        if (sentNanos >= measureStart) {
+            total.record(latency);
+        }
+        interval.record(latency);
+    }
+    
+    /**
+     * Text message: marker | send time | filler up to the text size
+     */
+    private static String text(long now) {
+        StringBuilder text = new StringBuilder(textSize).append(MARKER).append(now).append(' ');
+        while (text.length() < textSize) {
+            text.append("lorem ipsum ");
+        }
+        text.setLength(textSize);
+        return text.toString();
+    }
+    
+    /**
+     * A noisy JPEG of about the given size (noise does not compress)
+     */
+    private static byte[] image(int size) throws IOException {
+        int side = (int) Math.max(16, Math.sqrt(size / 1.2));
+        BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+    
+    private static String sha256(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return hex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Sleep until the given System.nanoTime
+     */
+    private static void pace(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+    
+    /**
+     * User class - One simulated client connection
+     */
+    private static class User {
+        final int index;
+        final String name;
+        final String room;
+        SocketChannel channel;
+        
+        // Receiver thread only: bytes read but not handled yet
+        ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        volatile boolean welcomed;
+        
+        // The server confirmed the /join of the room
+        volatile boolean joined;
+        
+        // The server agreed to compression (texts are sent deflated from then on)
+        volatile boolean deflating;
+        
+        // Makes images unique (and so their hashes)
+        private int imageCount;
+        
+        User(int index, String room) {
+            this.index = index;
+            this.name = "load" + index;
+            this.room = room;
+        }
+        
+        void connect() throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            
+            String hello = binary ? "HELLO " + BINARY_PROTOCOL + " " + name : name;
+            write(ByteBuffer.wrap((hello + "\n").getBytes(StandardCharsets.UTF_8)));
+            if (!binary) {
+                welcomed = true;
+            }
+            if (compress) {
+                write(frame(TYPE_COMPRESS, Server.Compression.METHOD.getBytes(StandardCharsets.UTF_8)));
+            }
+            if (presence) {
+                write(frame(TYPE_PRESENCE, new byte[0]));
+            }
+            if (room != null) {
+                sendText("/join " + room);
+            }
+        }
+        
+        /**
+         * Wait until the handshake and the /join are answered; false when the deadline passed first
+         */
+        boolean awaitJoin(long deadline) throws InterruptedException {
+            while (!(welcomed && (room == null || joined))) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+        
+        void sendText(String text) throws IOException {
+            if (binary) {
+                byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+                byte[] compressed = deflating && payload.length >= Server.Compression.MIN_LENGTH
+                    ? Server.Compression.deflate(payload, 0, payload.length) : null;
+                write(compressed != null
+                    ? frame(TYPE_TEXT | Server.Compression.FLAG, compressed)
+                    : frame(TYPE_TEXT, payload));
+            } else {
+                write(ByteBuffer.wrap(("TEXT:" + text + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        
+        void sendTyping() throws IOException {
+            write(frame(TYPE_TYPING, new byte[] {1}));
+        }
+        
+        /**
+         * Send the image with a unique trailer (JPEG readers ignore bytes after the end marker)
+         */
+        void sendImage(byte[] base) throws IOException {
+            byte[] image = Arrays.copyOf(base, base.length + 12);
+            ByteBuffer.wrap(image, base.length, 12).putInt(index).putInt(imageCount++).putInt(ThreadLocalRandom.current().nextInt());
+            String hash = sha256(image, 0, image.length);
+            
+            ByteBuffer data = binary
+                ? frame(TYPE_IMAGE, image)
+                : ByteBuffer.wrap(("IMAGE:" + Base64.getEncoder().encodeToString(image) + "\n").getBytes(StandardCharsets.UTF_8));
+            sentImages.put(hash, System.nanoTime());
+            write(data);
+        }
+        
+        private ByteBuffer frame(int type, byte[] payload) {
+            ByteBuffer frame = ByteBuffer.allocate(5 + payload.length);
+            frame.put((byte) type).putInt(payload.length).put(payload).flip();
+            return frame;
+        }
+        
+        /**
+         * Write everything (waits while the server is not reading)
+         */
+        private synchronized void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        }
+        
+        /**
+         * Handle everything complete in the input buffer (receiver thread)
+         */
+        void consume() {
+            input.flip();
+            while (true) {
+                if (!welcomed || !binary) {
+                    int newline = indexOf(input, (byte) '\n');
+                    if (newline < 0) {
+                        break;
+                    }
+                    byte[] line = new byte[newline - input.position()];
+                    input.get(line);
+                    input.get();
+                    String text = new String(line, StandardCharsets.UTF_8);
+                    if (!welcomed) {
+                        welcomed = true;
+                    } else {
+                        onLine(text);
+                    }
+                } else {
+                    if (input.remaining() < 5) {
+                        break;
+                    }
+                    int type = input.get(input.position()) & 0xFF;
+                    int length = input.getInt(input.position() + 1);
+                    if (input.remaining() < 5 + length) {
+                        if (input.capacity() < 5 + length) {
+                            grow(5 + length);
+                            return;
+                        }
+                        break;
+                    }
+                    input.position(input.position() + 5);
+                    ByteBuffer payload = input.slice();
+                    payload.limit(length);
+                    input.position(input.position() + length);
+                    onFrame(type, payload);
+                }
+            }
+            
+            if (!input.hasRemaining()) {
+                input.clear();
+            } else if (input.position() == 0 && input.limit() == input.capacity()) {
+                // A line longer than the buffer (text-mode image)
+                grow(input.capacity() * 2);
+            } else {
+                input.compact();
+            }
+        }
+        
+        private void grow(int capacity) {
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            larger.put(input);
+            input = larger;
+        }
+        
+        private static int indexOf(ByteBuffer buffer, byte value) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * sender (UTF) | time (8) | body
+         */
+        private void onFrame(int type, ByteBuffer payload) {
+            if (System.nanoTime() >= measureStart) {
+                int base = type & ~Server.Compression.FLAG;
+                if (base == TYPE_PRESENCE) {
+                    presenceBytes.addAndGet(5 + payload.remaining());
+                } else if (base == TYPE_TEXT || base == TYPE_IMAGE || base == TYPE_MEDIA_REF) {
+                    messageBytes.addAndGet(5 + payload.remaining());
+                }
+            }
+            
+            if ((type & Server.Compression.FLAG) != 0) {
+                byte[] compressed = new byte[payload.remaining()];
+                payload.get(compressed);
+                try {
+                    payload = ByteBuffer.wrap(Server.Compression.inflate(compressed, Integer.MAX_VALUE));
+                } catch (IOException e) {
+                    System.err.println("❌ " + name + ": " + e.getMessage());
+                    return;
+                }
+                type &= ~Server.Compression.FLAG;
+            }
+            
+            int senderLength = payload.getShort() & 0xffff;
+            payload.position(payload.position() + senderLength + 8);
+            
+            if (type == TYPE_COMPRESS) {
+                deflating = payload.hasRemaining();
+            } else if (type == TYPE_TEXT) {
+                byte[] body = new byte[payload.remaining()];
+                payload.get(body);
+                onText(new String(body, StandardCharsets.UTF_8));
+            } else if (type == TYPE_MEDIA_REF && payload.remaining() >= 32) {
+                byte[] hash = new byte[32];
+                payload.get(hash);
+                onImage(hex(hash));
+            }
+        }
+        
+        /**
+         * [sender time]: TEXT:... / IMAGE:<base64>
+         */
+        private void onLine(String line) {
+            int start = line.indexOf("]: ");
+            if (start < 0) {
+                return;
+            }
+            String message = line.substring(start + 3);
+            if (message.startsWith("TEXT:")) {
+                onText(message.substring(5));
+            } else if (message.startsWith("IMAGE:")) {
+                byte[] image = Base64.getDecoder().decode(message.substring(6));
+                onImage(sha256(image, 0, image.length));
+            } else {
+                onText(message);
+            }
+        }
+        
+        private void onText(String text) {
+            if (text.startsWith(MARKER)) {
+                int end = text.indexOf(' ', MARKER.length());
+                delivered(Long.parseLong(text.substring(MARKER.length(), end)));
+            } else if (text.startsWith(JOINED_NOTICE)) {
+                joined = true;
+            }
+        }
+        
+        private void onImage(String hash) {
+            Long sent = sentImages.get(hash);
+            if (sent != null) {
+                delivered(sent);
+            }
+        }
+        
+        void close() {
+            try {
+                if (binary) {
+                    write(frame(TYPE_QUIT, new byte[0]));
+                } else {
+                    write(ByteBuffer.wrap("/quit\n".getBytes(StandardCharsets.UTF_8)));
+                }
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+    
+    /**
+     * Receiver class - Selector thread reading the sockets of many users
+     */
+    private static class Receiver extends Thread {
+        private final Selector selector;
+        private final Queue<User> added = new ConcurrentLinkedQueue<>();
+        
+        Receiver(int index) throws IOException {
+            super("receiver-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+        
+        void register(User user) {
+            added.add(user);
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    
+                    User user;
+                    while ((user = added.poll()) != null) {
+                        user.channel.register(selector, SelectionKey.OP_READ, user);
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        read(key, (User) key.attachment());
+                    }
+                } catch (IOException e) {
+                    System.err.println("❌ Receiver Error: " + e.getMessage());
+                }
+            }
+        }
+        
+        private void read(SelectionKey key, User user) {
+            try {
+                int read;
+                while ((read = user.channel.read(user.input)) > 0) {
+                    user.consume();
+                }
+                if (read < 0) {
+                    disconnects.incrementAndGet();
+                    key.cancel();
+                    user.channel.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                disconnects.incrementAndGet();
+                key.cancel();
+                try {
+                    user.channel.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+    }
+    
+    /**
+     * LatencyHistogram class - Counts of latencies in microseconds, 64 buckets per power
+     * of two (within 1.6%) so millions of samples take no extra memory
+     */
+    private static class LatencyHistogram {
+        private static final int EXACT = 128;
+        private static final int SUB_BUCKETS = 64;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(EXACT + 57 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, nanos / 1000)));
+            count.incrementAndGet();
+        }
+        
+        long count() {
+            return count.get();
+        }
+        
+        /**
+         * Latency in milliseconds that the given fraction of samples did not exceed
+         */
+        double percentile(double fraction) {
+            long target = (long) Math.ceil(fraction * count.get());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return upperBound(i) / 1000.0;
+                }
+            }
+            return 0;
+        }
+        
+        private static int index(long micros) {
+            if (micros < EXACT) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - 6;
+            return EXACT + (exponent - 7) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+        }
+        
+        private static long upperBound(int index) {
+            if (index < EXACT) {
+                return index;
+            }
+            int exponent = 7 + (index - EXACT) / SUB_BUCKETS;
+            long sub = SUB_BUCKETS + (index - EXACT) % SUB_BUCKETS;
+            return ((sub + 1) << (exponent - 6)) - 1;
+        }
+    }
+}
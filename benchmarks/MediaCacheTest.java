@@ -0,0 +1,53 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MediaCacheTest - Full images kept on disk by the client within their byte budget
+ */
+public class MediaCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leastRecentlyOpenedGoesFirst() {
+        File dir = folder.getRoot();
+        Client.MediaCache cache = new Client.MediaCache(dir, 3000);
+        for (int i = 0; i < 3; i++) {
+            File file = cache.put("image" + i, new byte[1000]);
+            assertNotNull(file);
+            file.setLastModified(1000000L + i * 1000);
+        }
+        assertEquals(3, dir.listFiles().length);
+
+        // Opening image0 makes image1 the oldest
+        assertNotNull(cache.get("image0"));
+        assertNotNull(cache.put("image3", new byte[1000]));
+
+        assertNull(cache.get("image1"));
+        assertNotNull(cache.get("image0"));
+        assertNotNull(cache.get("image2"));
+        assertNotNull(cache.get("image3"));
+        assertEquals(3, dir.listFiles().length);
+    }
+
+    @Test
+    public void imageLargerThanTheBudgetStillStays() {
+        File dir = folder.getRoot();
+        Client.MediaCache cache = new Client.MediaCache(dir, 3000);
+        assertNotNull(cache.put("small", new byte[1000]));
+        File large = cache.put("large", new byte[5000]);
+
+        assertTrue(large.isFile());
+        assertFalse(new File(dir, "small").exists());
+        assertEquals(1, dir.listFiles().length);
+    }
+}
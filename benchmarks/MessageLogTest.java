@@ -0,0 +1,170 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MessageLogTest - Recovery and history reads of the on-disk message log
+ *
+ * Every check reads from a freshly opened log, so history comes from the segment
+ * files and their index, not from the records kept in memory.
+ */
+public class MessageLogTest {
+    // Small segments, so a few hundred messages span several files
+    private static final long SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void historyAcrossSegmentBoundary() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        write(new Server.MessageLog(dir, SEGMENT_SIZE), 300);
+
+        List<Path> segments = segments(dir);
+        assertTrue("expected several segments, got " + segments.size(), segments.size() >= 3);
+        long base = baseSeq(segments.get(1));
+
+        Server.MessageLog log = new Server.MessageLog(dir, SEGMENT_SIZE);
+
+        // Last 20 up to a seq in the second segment: starts in the first one
+        assertFrames(base - 10, base + 9, log.history(0, 0, 20, base + 9));
+
+        // Starting exactly at the first record of a segment
+        assertFrames(base, base + 4, log.history(base - 1, 0, 100, base + 4));
+
+        // By time, through the index of both segments
+        assertFrames(base - 3, base + 2, log.history(0, millis(base - 3), 100, base + 2));
+    }
+
+    @Test
+    public void truncatedTailRecordIsDroppedOnRecovery() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        write(new Server.MessageLog(dir), 10);
+
+        // A crash in the middle of record 11: its header and part of its frame
+        Path segment = segments(dir).get(0);
+        long size = Files.size(segment);
+        ByteBuffer torn = ByteBuffer.allocate(30);
+        torn.putInt(100).putLong(11).putLong(millis(11));
+        Files.write(segment, torn.array(), StandardOpenOption.APPEND);
+
+        Server.MessageLog recovered = new Server.MessageLog(dir);
+        assertEquals(size, Files.size(segment));
+        assertFrames(1, 10, recovered.history(0, 0, 100, Long.MAX_VALUE));
+
+        // The next record goes where the torn one was, with the seq it would have had
+        write(recovered, 1);
+        assertFrames(1, 11, new Server.MessageLog(dir).history(0, 0, 100, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void historyStopsAtTheWrittenSize() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        write(new Server.MessageLog(dir), 10);
+        Server.MessageLog log = new Server.MessageLog(dir);
+
+        // The log thread has started the next record but not finished it
+        ByteBuffer partial = ByteBuffer.allocate(12);
+        partial.putInt(100).putLong(11);
+        Files.write(segments(dir).get(0), partial.array(), StandardOpenOption.APPEND);
+
+        assertFrames(1, 10, log.history(0, 0, 100, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void historyWaitsForRecordsNotYetWritten() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        Server.MessageLog log = new Server.MessageLog(dir);
+
+        // More than the log keeps in memory, before its thread wrote any of them
+        for (long seq = 1; seq <= 3000; seq++) {
+            log.append(frame(seq));
+        }
+
+        List<List<Server.Frame>> result = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                result.add(log.history(0, 0, 3000, Long.MAX_VALUE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        reader.start();
+        reader.join(300);
+        assertTrue("history returned without the records that are only queued", reader.isAlive());
+
+        Thread thread = new Thread(log, "message-log");
+        thread.setDaemon(true);
+        thread.start();
+        reader.join(10000);
+        assertFrames(1, 3000, result.get(0));
+    }
+
+    /**
+     * Append count messages (numbered by the seq they get) and wait until the log thread wrote them
+     */
+    private static void write(Server.MessageLog log, int count) throws InterruptedException {
+        Thread thread = new Thread(log, "message-log");
+        thread.setDaemon(true);
+        thread.start();
+
+        long last = log.writtenSeq + count;
+        for (long seq = log.writtenSeq + 1; seq <= last; seq++) {
+            log.append(frame(seq));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (log.writtenSeq < last) {
+            assertTrue("log thread did not write seq " + last, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Server.Frame frame(long seq) {
+        return new Server.Frame("alice", millis(seq), "TEXT:message " + seq);
+    }
+
+    private static long millis(long seq) {
+        return 1000000 + seq * 1000;
+    }
+
+    private static void assertFrames(long firstSeq, long lastSeq, List<Server.Frame> frames) {
+        assertEquals(lastSeq - firstSeq + 1, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            long seq = firstSeq + i;
+            Server.Frame frame = frames.get(i);
+            assertEquals(seq, frame.seq);
+            assertEquals(frame(seq).buffer(Server.BINARY_FORMAT), frame.buffer(Server.BINARY_FORMAT));
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static long baseSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - 4));
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OutboundQueueTest - Slow-client policies of the per-connection send queue
+ */
+public class OutboundQueueTest {
+
+    @Test
+    public void dropOldestKeepsEssentialFrames() throws Exception {
+        Server.OutboundQueue queue = new Server.OutboundQueue(3, "drop-oldest");
+        Server.Frame welcome = Server.Frame.control("WELCOME");
+        assertTrue(queue.offer(welcome));
+        assertTrue(queue.offer(text(1)));
+        assertTrue(queue.offer(text(2)));
+        assertTrue(queue.offer(text(3)));
+
+        assertEquals(1, queue.dropped());
+        assertBatch(queue, welcome, "message 2", "message 3");
+    }
+
+    @Test
+    public void dropImagesEvictsMediaFirst() throws Exception {
+        Server.OutboundQueue queue = new Server.OutboundQueue(3, "drop-images");
+        assertTrue(queue.offer(text(1)));
+        assertTrue(queue.offer(image()));
+        assertTrue(queue.offer(text(2)));
+        assertTrue(queue.offer(text(3)));
+        assertBatch(queue, null, "message 1", "message 2", "message 3");
+
+        // Full of text: a new image is the cheapest thing to drop
+        assertTrue(queue.offer(text(4)));
+        assertTrue(queue.offer(text(5)));
+        assertTrue(queue.offer(text(6)));
+        assertTrue(queue.offer(image()));
+        assertEquals(2, queue.dropped());
+        assertBatch(queue, null, "message 4", "message 5", "message 6");
+    }
+
+    @Test
+    public void disconnectPolicyRefusesWhenFull() {
+        Server.OutboundQueue queue = new Server.OutboundQueue(2, "disconnect");
+        assertTrue(queue.offer(text(1)));
+        assertTrue(queue.offer(text(2)));
+        assertFalse(queue.offer(text(3)));
+    }
+
+    @Test
+    public void onlyEssentialFramesQueuedDisconnects() {
+        for (String policy : new String[] {"drop-oldest", "drop-images"}) {
+            Server.OutboundQueue queue = new Server.OutboundQueue(2, policy);
+            assertTrue(queue.offer(Server.Frame.control("WELCOME")));
+            assertTrue(queue.offer(Server.Frame.control("COMPRESS:none")));
+            assertFalse(policy, queue.offer(text(1)));
+            assertEquals(policy, 2, queue.size());
+        }
+    }
+
+    @Test
+    public void heldMessagesFollowHistory() throws Exception {
+        Server.OutboundQueue queue = new Server.OutboundQueue(10, "drop-oldest");
+        queue.hold();
+        assertTrue(queue.offer(logged(5)));
+        assertTrue(queue.offerHistory(logged(3)));
+        assertTrue(queue.offerHistory(logged(4)));
+        assertEquals(3, queue.size());
+        assertBatch(queue, null, "message 3", "message 4");
+
+        queue.release();
+        assertBatch(queue, null, "message 5");
+    }
+
+    @Test
+    public void fullQueueEvictsHeldMessagesLast() throws Exception {
+        Server.OutboundQueue queue = new Server.OutboundQueue(3, "drop-oldest");
+        queue.hold();
+        assertTrue(queue.offer(logged(9)));
+        assertTrue(queue.offerHistory(Server.Frame.control("HISTORY")));
+        assertTrue(queue.offerHistory(Server.Frame.control("END")));
+
+        // Only essential frames in the queue itself: the oldest held message goes
+        assertTrue(queue.offer(logged(10)));
+        queue.release();
+        List<Server.Frame> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        assertEquals(3, batch.size());
+        assertEquals(10, batch.get(2).seq);
+    }
+
+    private static Server.Frame text(int n) {
+        return new Server.Frame("alice", 1000 + n, "TEXT:message " + n);
+    }
+
+    private static Server.Frame logged(long seq) {
+        Server.Frame frame = new Server.Frame("alice", 1000 + seq, "TEXT:message " + seq);
+        frame.seq = seq;
+        return frame;
+    }
+
+    private static Server.Frame image() {
+        return new Server.Frame("alice", 1000, "IMAGE:aGVsbG8=");
+    }
+
+    /**
+     * Take the queued frames: the essential one first (when given), then texts in order
+     */
+    private static void assertBatch(Server.OutboundQueue queue, Server.Frame first, String... texts)
+            throws InterruptedException {
+        List<Server.Frame> batch = new ArrayList<>();
+        assertTrue(queue.take(batch));
+        int offset = 0;
+        if (first != null) {
+            assertTrue(batch.get(0) == first);
+            offset = 1;
+        }
+        assertEquals(texts.length + offset, batch.size());
+        for (int i = 0; i < texts.length; i++) {
+            Server.Frame frame = batch.get(i + offset);
+            assertFalse(frame.media);
+            assertEquals(text(frame), texts[i]);
+        }
+    }
+
+    private static String text(Server.Frame frame) {
+        ByteBuffer buffer = frame.buffer(Server.TEXT_FORMAT);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        return line.substring(line.indexOf("TEXT:") + 5).trim();
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PeerMeshTest - Numbering of room messages on the owner node and their dedupe on the
+ * receiving node, without sockets: what the owner queues on a link is handed straight
+ * to the other side
+ */
+public class PeerMeshTest {
+    private static final int DELIVER = 4;
+    private static final int MESSAGES = 20000;
+
+    @Test
+    public void roomsNumberedConcurrentlyAreAllDelivered() throws Exception {
+        Server.PeerMesh owner = new Server.PeerMesh();
+        Server.PeerMesh.Link link = owner.new Link(null, false);
+        link.rooms.add("a");
+        link.rooms.add("b");
+        owner.links.put("peer", link);
+
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            String room = i == 0 ? "a" : "b";
+            threads[i] = new Thread(() -> {
+                for (int n = 0; n < MESSAGES; n++) {
+                    owner.sequence(room, frame(n));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // In the order the link would write them
+        Server.PeerMesh.Link receiver = new Server.PeerMesh().new Link(null, true);
+        Map<String, List<Server.Frame>> delivered = new HashMap<>();
+        Map<String, Long> lastSeq = new HashMap<>();
+        byte[] message;
+        while ((message = link.outbound.poll()) != null) {
+            ByteBuffer header = ByteBuffer.wrap(message);
+            assertEquals(DELIVER, header.get());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message, 5, header.getInt()));
+            long seq = in.readLong();
+            String room = in.readUTF();
+            Server.Frame frame = Server.Frame.readRelay(in);
+
+            assertTrue("seq " + seq + " of room " + room + " dropped", receiver.fresh(room, seq));
+            delivered.computeIfAbsent(room, r -> new ArrayList<>()).add(frame);
+            lastSeq.put(room, seq);
+        }
+
+        for (String room : new String[] {"a", "b"}) {
+            List<Server.Frame> frames = delivered.get(room);
+            assertEquals(room, MESSAGES, frames.size());
+            for (int n = 0; n < MESSAGES; n++) {
+                assertEquals(room, frame(n).buffer(Server.BINARY_FORMAT), frames.get(n).buffer(Server.BINARY_FORMAT));
+            }
+
+            // A message that comes again is still dropped
+            assertFalse(receiver.fresh(room, lastSeq.get(room)));
+        }
+    }
+
+    private static Server.Frame frame(int n) {
+        return new Server.Frame("alice", n, "TEXT:message " + n);
+    }
+}
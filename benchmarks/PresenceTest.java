@@ -0,0 +1,123 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * PresenceTest - Online and typing changes of a room, coalesced into diff frames
+ */
+public class PresenceTest {
+    private static final String ONLINE = "online ";
+    private static final String OFFLINE = "offline ";
+    private static final String TYPING = "typing ";
+    private static final String IDLE = "idle ";
+
+    @Test
+    public void changesWithinOneIntervalCoalesce() throws IOException {
+        Server.Presence presence = new Server.Presence("SERVER");
+        presence.online("alice", true);
+        presence.typing("alice", true);
+        presence.typing("alice", false);
+
+        // Typing started and stopped in between: members only hear that alice is online
+        assertEquals(Arrays.asList(ONLINE + "alice"), entries(presence.publish(now())));
+        assertNull(presence.publish(now()));
+
+        // Online and offline in between: nothing at all
+        presence.online("bob", true);
+        presence.online("bob", false);
+        assertNull(presence.publish(now()));
+    }
+
+    @Test
+    public void typingEndsByTimeoutOrMessage() throws IOException {
+        Server.Presence presence = new Server.Presence("SERVER");
+        presence.online("alice", true);
+        presence.typing("alice", true);
+        assertEquals(Arrays.asList(ONLINE + "alice", TYPING + "alice"), entries(presence.publish(now())));
+
+        // Typing again within the timeout is no change
+        presence.typing("alice", true);
+        assertNull(presence.publish(now()));
+
+        // Without a repeat it times out
+        assertEquals(Arrays.asList(IDLE + "alice"), entries(presence.publish(Long.MAX_VALUE)));
+
+        // A message ends typing on the client already: no IDLE
+        presence.typing("alice", true);
+        presence.publish(now());
+        presence.sent("alice");
+        assertNull(presence.publish(now()));
+        assertEquals(Arrays.asList(ONLINE + "alice"), entries(presence.snapshot()));
+    }
+
+    @Test
+    public void offlineOnceTheLastConnectionLeaves() throws IOException {
+        Server.Presence presence = new Server.Presence("SERVER");
+        presence.online("alice", true);
+        presence.online("alice", true);
+        presence.typing("alice", true);
+        presence.publish(now());
+
+        presence.online("alice", false);
+        assertNull(presence.publish(now()));
+
+        // Going offline also ends typing, without a separate IDLE
+        presence.online("alice", false);
+        assertEquals(Arrays.asList(OFFLINE + "alice"), entries(presence.publish(now())));
+        assertEquals(new ArrayList<String>(), entries(presence.snapshot()));
+    }
+
+    @Test
+    public void snapshotFollowsPublishedState() throws IOException {
+        Server.Presence presence = new Server.Presence("SERVER");
+        presence.online("alice", true);
+        presence.online("bob", true);
+        presence.typing("bob", true);
+
+        // Not published yet: a new listener gets the same state as everyone else
+        assertEquals(new ArrayList<String>(), entries(presence.snapshot()));
+
+        presence.publish(now());
+        List<String> snapshot = entries(presence.snapshot());
+        snapshot.sort(null);
+        assertEquals(Arrays.asList(ONLINE + "alice", ONLINE + "bob", TYPING + "bob"), snapshot);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Entries of a presence frame as "kind user"
+     */
+    private static List<String> entries(Server.Frame frame) throws IOException {
+        ByteBuffer buffer = frame.buffer(Server.BINARY_FORMAT);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        // type | length | sender | time | body
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.readByte();
+        in.readInt();
+        in.readUTF();
+        in.readLong();
+        in.readByte();
+
+        List<String> entries = new ArrayList<>();
+        String[] kinds = {null, ONLINE, OFFLINE, TYPING, IDLE};
+        while (in.available() > 0) {
+            int kind = in.readByte();
+            entries.add(kinds[kind] + in.readUTF());
+        }
+        return entries;
+    }
+}
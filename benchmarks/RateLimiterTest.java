@@ -0,0 +1,116 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RateLimiterTest - Token buckets of the inbound limits, and the disconnect of a client
+ * that keeps sending while it should wait
+ */
+public class RateLimiterTest {
+    // Server defaults: 20 messages/s, 2 s of burst, disconnected at 10 s of debt
+    private static final int MESSAGE_RATE = 20;
+    private static final int BURST = 2 * MESSAGE_RATE;
+    private static final int DEBT = 10 * MESSAGE_RATE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void openLog() throws IOException {
+        Server.messageLog = new Server.MessageLog(folder.getRoot().toPath());
+        Server.userLimits.clear();
+    }
+
+    @After
+    public void closeLog() {
+        Server.messageLog = null;
+        Server.userLimits.clear();
+    }
+
+    @Test
+    public void burstThenWaitPerToken() {
+        Server.RateLimiter limiter = new Server.RateLimiter(10, 2);
+        assertTrue(limiter.full());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("token " + i, 0, limiter.acquire(1));
+        }
+        assertFalse(limiter.full());
+
+        // Each token over the burst is 1/10 s of debt
+        assertMillis(100, limiter.acquire(1));
+        assertMillis(200, limiter.acquire(1));
+        assertMillis(700, limiter.acquire(5));
+    }
+
+    @Test
+    public void bulkAcquireCountsEveryToken() {
+        Server.RateLimiter limiter = new Server.RateLimiter(1000, 1);
+        assertEquals(0, limiter.acquire(1000));
+        assertMillis(500, limiter.acquire(500));
+    }
+
+    @Test
+    public void refillsWhileIdle() throws InterruptedException {
+        Server.RateLimiter limiter = new Server.RateLimiter(100, 1);
+        limiter.acquire(100);
+        Thread.sleep(300);
+
+        // About 30 tokens back: 20 more fit, 60 more do not
+        assertEquals(0, limiter.acquire(20));
+        assertTrue(limiter.acquire(40) > 0);
+    }
+
+    @Test
+    public void floodingClientIsDisconnected() throws IOException {
+        UserLimitsTest.Member member = join("flood");
+
+        // Throttling is a no-op here, like a client whose bytes are already read
+        int admitted = 0;
+        while (member.handleLine("TEXT:message " + admitted)) {
+            admitted++;
+            assertTrue("not disconnected after " + admitted, admitted < 10 * (BURST + DEBT));
+        }
+        assertNear(BURST + DEBT, admitted);
+    }
+
+    @Test
+    public void connectionsOfOneUserShareTheirLimits() throws IOException {
+        UserLimitsTest.Member first = join("twice");
+        UserLimitsTest.Member second = join("twice");
+
+        int admitted = 0;
+        while ((admitted % 2 == 0 ? first : second).handleLine("TEXT:message " + admitted)) {
+            admitted++;
+            assertTrue("not disconnected after " + admitted, admitted < 10 * (BURST + DEBT));
+        }
+        assertNear(BURST + DEBT, admitted);
+    }
+
+    private static UserLimitsTest.Member join(String name) throws IOException {
+        UserLimitsTest.Member member = new UserLimitsTest.Member();
+        assertTrue(member.handleLine("HELLO text " + name));
+        return member;
+    }
+
+    /**
+     * Within a few messages of what the rate allows (the bucket refills while the test runs)
+     */
+    private static void assertNear(int expected, int admitted) {
+        assertTrue("admitted " + admitted + ", expected about " + expected,
+            admitted >= expected - 1 && admitted <= expected + 10);
+    }
+
+    private static void assertMillis(long expected, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        assertTrue("waited " + millis + " ms, expected about " + expected, millis <= expected && millis >= expected - 50);
+    }
+}
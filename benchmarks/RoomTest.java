@@ -0,0 +1,112 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RoomTest - Logged messages reach each member in seq order, across all its rooms
+ * (the resume checkpoint is the last seq written to the client)
+ */
+public class RoomTest {
+    private static final int ROUNDS = 100;
+    private static final int MESSAGES = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void openLog() throws IOException {
+        Server.messageLog = new Server.MessageLog(folder.getRoot().toPath());
+    }
+
+    @After
+    public void closeLog() {
+        Server.messageLog = null;
+    }
+
+    @Test
+    public void joinsOfOneIntervalAreAnnouncedTogether() throws Exception {
+        // A member of the default room, with its own join already announced
+        UserLimitsTest.Member member = new UserLimitsTest.Member();
+        assertTrue(member.handleLine("HELLO text watcher"));
+        Server.Room room = member.current;
+        room.announceArrivals();
+        member.outbound.drainTo(new ArrayList<>());
+
+        room.arrived("alice", "joined the chat! 👋");
+        room.announceArrivals();
+        for (String user : new String[] {"bob", "carol", "dave"}) {
+            room.arrived(user, "joined the chat! 👋");
+        }
+        room.arrived("alice", "left the chat! 👋");
+        room.announceArrivals();
+        for (int i = 0; i < 100; i++) {
+            room.arrived("user" + i, "joined the chat! 👋");
+        }
+        room.announceArrivals();
+        room.announceArrivals();
+
+        List<Server.Frame> batch = new ArrayList<>();
+        member.outbound.drainTo(batch);
+        assertEquals(4, batch.size());
+        assertText("alice has joined the chat!", batch.get(0));
+        assertText("bob, carol and dave have joined the chat!", batch.get(1));
+        assertText("alice has left the chat!", batch.get(2));
+        assertText("user0, user1, user2 and 97 others have joined the chat!", batch.get(3));
+        member.leave();
+    }
+
+    @Test
+    public void memberOfTwoRoomsGetsSeqOrder() throws Exception {
+        Server.Room[] rooms = {new Server.Room("a"), new Server.Room("b")};
+        UserLimitsTest.Member member = new UserLimitsTest.Member();
+        member.historyEnd = 0;
+        for (Server.Room room : rooms) {
+            room.members.add(member);
+        }
+
+        long last = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            Thread[] threads = new Thread[rooms.length];
+            for (int i = 0; i < threads.length; i++) {
+                Server.Room room = rooms[i];
+                threads[i] = new Thread(() -> {
+                    for (int n = 0; n < MESSAGES; n++) {
+                        room.deliver(new Server.Frame("alice", n, "TEXT:message " + n));
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            List<Server.Frame> batch = new ArrayList<>();
+            member.outbound.drainTo(batch);
+            assertEquals(rooms.length * MESSAGES, batch.size());
+            for (Server.Frame frame : batch) {
+                assertTrue("seq " + frame.seq + " queued after " + last, frame.seq > last);
+                last = frame.seq;
+            }
+        }
+    }
+
+    private static void assertText(String expected, Server.Frame frame) {
+        ByteBuffer buffer = frame.buffer(Server.TEXT_FORMAT);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        // The emoji is left out: the server writes text in the platform charset
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        assertTrue(line, line.contains("]: " + expected));
+    }
+}
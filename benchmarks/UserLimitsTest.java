@@ -0,0 +1,86 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * UserLimitsTest - Rate limits shared by the connections of one user, keyed by the name
+ * the user gets at the handshake
+ */
+public class UserLimitsTest {
+    // Longer than the longest name, so the server cuts it
+    private static final String LONG_NAME = "abcdefghijklmnopqrstuvwxyz0123456789ABCD";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void openLog() throws IOException {
+        Server.messageLog = new Server.MessageLog(folder.getRoot().toPath());
+        Server.userLimits.clear();
+    }
+
+    @After
+    public void closeLog() {
+        Server.messageLog = null;
+        Server.userLimits.clear();
+    }
+
+    @Test
+    public void longNameReleasesItsLimits() throws Exception {
+        Member client = join(LONG_NAME);
+        assertTrue(client.username.length() < LONG_NAME.length());
+        assertEquals(1, Server.userLimits.size());
+        assertEquals(1, Server.userLimits.get(client.username).connections);
+
+        client.leave();
+        assertTrue(Server.userLimits.isEmpty());
+    }
+
+    @Test
+    public void longNameSharesLimitsWithItsCutName() throws Exception {
+        Member first = join(LONG_NAME);
+        Member second = join(first.username);
+        assertEquals(1, Server.userLimits.size());
+        assertEquals(2, Server.userLimits.get(first.username).connections);
+
+        second.leave();
+        assertEquals(1, Server.userLimits.get(first.username).connections);
+        first.leave();
+        assertTrue(Server.userLimits.isEmpty());
+    }
+
+    private static Member join(String name) throws IOException {
+        Member member = new Member();
+        assertTrue(member.handleLine("HELLO text " + name));
+        return member;
+    }
+
+    /**
+     * Member class - Connection that only queues, running offloaded work in place
+     */
+    static class Member extends Server.Connection {
+        @Override
+        void onQueued() {
+        }
+
+        @Override
+        void disconnect() {
+        }
+
+        @Override
+        void throttle(long nanos) {
+        }
+
+        @Override
+        void offload(Blocking work) throws IOException {
+            work.run();
+        }
+    }
+}